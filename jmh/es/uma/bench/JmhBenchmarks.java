@@ -0,0 +1,242 @@
+package es.uma.bench;
+
+import es.uma.keyword.LookForKeyword;
+import es.uma.keyword.Looker;
+import es.uma.motif.HTMLDecorator;
+import es.uma.motif.PatternArgument;
+import es.uma.motif.PerfectMatchArgument;
+import es.uma.motif.Sequence;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import nw.NWAlign;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the alignments, the loading of FASTA and GFF3 files and the motif search, built with
+ * "mvn -P jmh package" and run from the root of the project, where the sample files are:
+ *   java -jar target/benchmarks.jar [regex] [-prof gc] [-rf json]
+ * Each invocation processes one unit, taken in turn from its group: a pair of consecutive dehydrins of a
+ * bucket of lengths (so the score of nwScore, nwMatrix and nwAlign is pairs/s), a FASTA file, a GFF3
+ * annotation or a dehydrin. The files and the dehydrins differ in size, so these benchmarks also count what
+ * they process: mb (MB/s) for the FASTA files, lines (lines/s) for the GFF3 annotations and residues
+ * (residues/s, 10^9 / residues is ns/residue) for the motif search.
+ *
+ * @author galvez
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class JmhBenchmarks {
+    private static final String PROTEINS = "datafiles/all_varieties_DHN_peptide.fasta";
+    private static final String ANNOTATIONS = "genomes/Phytozome/PhytozomeV13";
+    private static final int GAP_OPEN = -11, GAP_EXTN = -1;
+
+    @State(Scope.Thread)
+    public static class Pairs {
+        @Param({"0-150", "150-300", "300+"})
+        public String bucket;
+        List<String> seqs;
+        int next;
+
+        // Dehydrins with a length in the bucket, sorted by length: consecutive ones are aligned.
+        @Setup
+        public void setup() {
+            String[] limits = bucket.replace("+", "-" + Integer.MAX_VALUE).split("-");
+            int from = Integer.parseInt(limits[0]), to = Integer.parseInt(limits[1]);
+            seqs = new ArrayList<>();
+            for(Sequence s: Looker.loadFasta(PROTEINS))
+                if (s.data.length() >= from && s.data.length() < to) seqs.add(s.data);
+            seqs.sort((a, b) -> a.length() - b.length());
+        }
+
+        // Index of the second sequence of the next pair.
+        int next() {
+            if (++next >= seqs.size()) next = 1;
+            return next;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Annotations {
+        List<String> plain = new ArrayList<>(), transcripts = new ArrayList<>();
+        List<Path> folders;
+        double[] plainMB, transcriptsMB;  // Uncompressed
+        long[] gff3Lines;
+        int nextPlain, nextTranscripts, nextFolder;
+
+        @Setup
+        public void setup() throws IOException {
+            try (Stream<Path> paths = Files.walk(Paths.get(ANNOTATIONS))) {
+                folders = paths.filter(p -> p.getFileName().toString().equals("annotation")).sorted().collect(Collectors.toList());
+            }
+            plainMB = new double[folders.size()];
+            transcriptsMB = new double[folders.size()];
+            gff3Lines = new long[folders.size()];
+            for(int i=0; i<folders.size(); i++) {
+                File folder = folders.get(i).toFile();
+                plain.add(new File(folder, "genes.fasta").getPath());
+                plainMB[i] = new File(plain.get(i)).length() / 1e6;
+                File[] gz = folder.listFiles((dir, name) -> name.endsWith(".protein_primaryTranscriptOnly.fa.gz"));
+                transcripts.add(gz[0].getPath());
+                transcriptsMB[i] = uncompressedSize(gz[0]) / 1e6;
+                File[] gff3 = folder.listFiles((dir, name) -> name.endsWith(".gene.gff3.gz"));
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(gff3[0]))))) {
+                    while (in.readLine() != null) gff3Lines[i]++;
+                }
+            }
+        }
+
+        private static long uncompressedSize(File gz) throws IOException {
+            long ret = 0;
+            byte[] buffer = new byte[1 << 16];
+            try (InputStream in = new GZIPInputStream(new FileInputStream(gz))) {
+                for(int n = in.read(buffer); n >= 0; n = in.read(buffer)) ret += n;
+            }
+            return ret;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Motives {
+        List<Sequence> dehydrins;
+        int next;
+        PrintStream out;
+        // Same motives as HTMLDecorator.main
+        PerfectMatchArgument[] pf = {
+            new PerfectMatchArgument("EKKGIMDKIKEKLPG", "KSegment", 4),
+            new PerfectMatchArgument("VDEYGNP", "YSegment", 3),
+            new PerfectMatchArgument("EDDGQGR", "InterSegment", 2),
+            new PerfectMatchArgument("KKDKKKKKEKK", "NLSSegment", 2),
+            new PerfectMatchArgument("DRGLFDKFIGKK", "FSegment", 4),
+        };
+        PatternArgument[] p = { new PatternArgument(Pattern.compile("SSSS+"), "SSegment") };
+
+        // The search prints what it finds: it is discarded while measuring.
+        @Setup
+        public void setup() {
+            dehydrins = Looker.loadFasta(PROTEINS);
+            out = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+
+        @TearDown
+        public void tearDown() {
+            System.setOut(out);
+        }
+    }
+
+    // Units processed in each iteration, reported by JMH per second next to the score.
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class MB {
+        public double mb;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            mb = 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Lines {
+        public long lines;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            lines = 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Residues {
+        public long residues;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            residues = 0;
+        }
+    }
+
+    @Benchmark
+    public int nwScore(Pairs pairs) {
+        int i = pairs.next();
+        return NWAlign.NeedlemanWunschScore(pairs.seqs.get(i-1), pairs.seqs.get(i), GAP_OPEN, GAP_EXTN);
+    }
+
+    @Benchmark
+    public int nwMatrix(Pairs pairs) {
+        int i = pairs.next();
+        return NWAlign.NeedlemanWunsch(pairs.seqs.get(i-1), pairs.seqs.get(i), GAP_OPEN, GAP_EXTN);
+    }
+
+    @Benchmark
+    public Object nwAlign(Pairs pairs) {
+        int i = pairs.next();
+        return NWAlign.align(pairs.seqs.get(i-1), pairs.seqs.get(i), GAP_OPEN, GAP_EXTN);
+    }
+
+    @Benchmark
+    public Object fastaPlain(Annotations a, MB counter) {
+        int i = a.nextPlain;
+        a.nextPlain = (i + 1) % a.plain.size();
+        counter.mb += a.plainMB[i];
+        return Looker.loadFasta(a.plain.get(i));
+    }
+
+    @Benchmark
+    public Object fastaGzip(Annotations a, MB counter) {
+        int i = a.nextTranscripts;
+        a.nextTranscripts = (i + 1) % a.transcripts.size();
+        counter.mb += a.transcriptsMB[i];
+        return Looker.loadFastaGZ(a.transcripts.get(i));
+    }
+
+    @Benchmark
+    public Object gff3Load(Annotations a, Lines counter) {
+        int i = a.nextFolder;
+        a.nextFolder = (i + 1) % a.folders.size();
+        counter.lines += a.gff3Lines[i];
+        return LookForKeyword.loadGff3(a.folders.get(i), "gene", name -> false);
+    }
+
+    @Benchmark
+    public Object motifSearch(Motives m, Residues counter) {
+        Sequence s = m.dehydrins.get(m.next);
+        m.next = (m.next + 1) % m.dehydrins.size();
+        counter.residues += s.data.length();
+        return HTMLDecorator.search(List.of(s), m.pf, m.p);
+    }
+}
@@ -1,12 +1,19 @@
 package es.uma.html;
 
+import nw.AlignmentResult;
+import nw.AlignmentScheduler;
+import nw.BatchAligner;
+import nw.BatchScores;
 import nw.NWAlign;
+import nw.QueryProfile;
+import nw.ScoreCache;
+import nw.ScoringMatrix;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -29,6 +36,10 @@ public class FillColors {
     protected static final int[] POSITIONS = {10, 6, 2, 8, 9, 7, 5, 4, 3, 1};
     private static final String basicColor = "#8B0000"; // DarkRed
     private static final String sequenceMissingColor = "#FF0000"; // Red
+    private static final int GAP_OPEN = -11, GAP_EXTN = -1;
+    static final double SIMILARITY = 0.95; // Minimum score (relative to the self-score) to share a colour
+    private static final double MIN_IDENTITY = Double.parseDouble(System.getProperty("nw.minIdentity", "0")); // Minimum identity (see AlignmentResult) to share a colour. 0 to not check it
+    private static final Map<String, Integer> SELF_SCORES = new ConcurrentHashMap<>(); // Self-score of each protein
     
     public static void iterateChromosomes(int chrNum, List<Variety> variedades) {
         int indexColor = -1;
@@ -47,17 +58,18 @@ public class FillColors {
 
     private static void iterateVariety(Variety v, int chr, Gene g, int indexColor) {
         // Gene bestMatch = null;
-        double optimalScore = (double)needlemanWunsch(g.protein, g).score;
+        QueryProfile query = profile(g.protein);
+        double optimalScore = (double)selfScore(g.protein);
+        int minScore = minScore(optimalScore);
         // double bestPercentage = 0.0;
         
-        ExecutorService executorService = Executors.newFixedThreadPool(8);
         List<Future<NWResult>> execs = new ArrayList<>();
         for(Gene g2: v.genes) if (g2.getChrNumber() == chr && g2.color == null && !g.protein.equals("")) 
-            execs.add(executorService.submit(() -> needlemanWunsch(g.protein, g2)));
+            execs.add(AlignmentScheduler.submit(() -> needlemanWunschAtLeast(query, g2, minScore)));
         
         for(Future<NWResult> f: execs) try {
             NWResult result = f.get();
-            if (result.score/optimalScore > 0.95) {
+            if (result.score/optimalScore > SIMILARITY && similarIdentity(query, result.gene)) {
                 result.gene.color = COLORS[indexColor];
                 result.gene.info += "\t" + result.score/optimalScore;
 //                if (bestMatch == null || Math.abs(result.gene.init-g.init) < Math.abs(bestMatch.init-g.init)) {
@@ -66,7 +78,6 @@ public class FillColors {
 //                } 
             }
         } catch (Exception x) { x.printStackTrace(); }
-        executorService.shutdownNow();
 //        if (bestMatch != null) {
 //            bestMatch.color = COLORS[indexColor];
 //            bestMatch.info += "\t" + bestPercentage;
@@ -91,21 +102,22 @@ public class FillColors {
                 if (g.color.equals(sequenceMissingColor)) continue;
                 if (usedColors.contains(g.color)) continue;
                 usedColors.add(g.color);
-                double optimalScore = (double)needlemanWunsch(g.protein, g).score;
+                QueryProfile query = profile(g.protein);
+                double optimalScore = (double)selfScore(g.protein);
+                int minScore = minScore(optimalScore);
                 System.out.println("Processing "+g.color+" with score "+optimalScore);
                 // Reassign genes from Unknown chromosomes
-                ExecutorService executorService = Executors.newFixedThreadPool(8);
                 List<Future<NWResult>> execs = new ArrayList<>();
                 for(Variety variety: variedades) {
                     if (hasColorInChromosome(variety, g.color, chrNum)) continue;
                     for(Gene g2: variety.genes) if (g2.getChrNumber() == -1) {
-                        execs.add(executorService.submit(() -> needlemanWunsch(g.protein, g2)));
+                        execs.add(AlignmentScheduler.submit(() -> needlemanWunschAtLeast(query, g2, minScore)));
                         System.out.println("Trying "+g2.name);
                     }
                 }
                 for(Future<NWResult> f: execs) try {
                     NWResult result = f.get();
-                    if (result.score/optimalScore > 0.95) {
+                    if (result.score/optimalScore > SIMILARITY && similarIdentity(query, result.gene)) {
                         result.gene.color = g.color;
                         result.gene.info += "\t" + result.score/optimalScore;
                         result.gene.chr = ""+chrNum;
@@ -114,7 +126,6 @@ public class FillColors {
                         System.out.println("Altered "+result.gene.name);
                     }
                 } catch (Exception x) { x.printStackTrace(); }
-                executorService.shutdownNow();
                 //
             }
         }
@@ -128,13 +139,64 @@ public class FillColors {
     }
 
     protected static NWResult needlemanWunsch(String q, Gene s) {
-        int gapOpen=-11, gapExtn=-1;
+        return needlemanWunsch(profile(q), s);
+    }
+
+    // The query is encoded once and reused against every gene it is compared to.
+    // Scores are kept in the persistent ScoreCache, so they are computed only in the first run.
+    protected static NWResult needlemanWunsch(QueryProfile q, Gene s) {
+        NWResult ret = new NWResult();
+        ret.gene = s;
+        ScoreCache cache = ScoreCache.shared();
+        ret.score = (cache == null)? ScoreCache.MISSING : cache.get(q, s.protein, GAP_OPEN, GAP_EXTN);
+        if (ret.score == ScoreCache.MISSING) {
+            ret.score = NWAlign.NeedlemanWunschScore(q, s.protein, GAP_OPEN, GAP_EXTN);
+            if (cache != null) cache.put(q, s.protein, GAP_OPEN, GAP_EXTN, ret.score);
+        }
+        return ret;
+    }
+
+    // Same score than needlemanWunsch when it is at least minScore. Otherwise, the alignment is abandoned
+    // as soon as minScore cannot be reached and the score is Integer.MIN_VALUE.
+    protected static NWResult needlemanWunschAtLeast(QueryProfile q, Gene s, int minScore) {
         NWResult ret = new NWResult();
         ret.gene = s;
-        ret.score = NWAlign.NeedlemanWunsch(q, s.protein, gapOpen, gapExtn);
+        ScoreCache cache = ScoreCache.shared();
+        int cached = (cache == null)? ScoreCache.MISSING : cache.get(q, s.protein, GAP_OPEN, GAP_EXTN);
+        if (cached != ScoreCache.MISSING) ret.score = (cached >= minScore)? cached : Integer.MIN_VALUE;
+        else {
+            ret.score = NWAlign.scoreAtLeast(q, s.protein, GAP_OPEN, GAP_EXTN, minScore);
+            // Only exact scores are cached
+            if (cache != null && ret.score != Integer.MIN_VALUE) cache.put(q, s.protein, GAP_OPEN, GAP_EXTN, ret.score);
+        }
         return ret;
     }
 
+    // Alignment (with gaps) of a gene against the query. See NWAlign.align.
+    protected static AlignmentResult align(QueryProfile q, Gene s) {
+        return NWAlign.align(q, s.protein, GAP_OPEN, GAP_EXTN, true);
+    }
+
+    // Second test to share a colour, after the score: the identity of the alignment.
+    static boolean similarIdentity(QueryProfile q, Gene s) {
+        return MIN_IDENTITY <= 0 || NWAlign.align(q, s.protein, GAP_OPEN, GAP_EXTN, false).identity() >= MIN_IDENTITY;
+    }
+
+    // Lowest score that can pass the test score/optimalScore > SIMILARITY (with a margin for rounding).
+    // No alignment is abandoned if optimalScore is not positive because then the test does not order scores.
+    private static int minScore(double optimalScore) {
+        return (optimalScore > 0)? (int)Math.floor(SIMILARITY*optimalScore) - 1 : Integer.MIN_VALUE;
+    }
+
+    // Score of a protein against itself (the optimalScore of the similarity tests), computed once per protein.
+    protected static int selfScore(String protein) {
+        return SELF_SCORES.computeIfAbsent(protein, p -> NWAlign.selfScore(ScoringMatrix.BLOSUM62, p, GAP_OPEN, GAP_EXTN));
+    }
+
+    protected static QueryProfile profile(String q) {
+        return new QueryProfile(ScoringMatrix.BLOSUM62, q);
+    }
+
     static void iterateVarietiesAgainstFirst(List<Variety> variedades) {
         int indexColor = -1;
         // A different colour is assigned to each gene of the model (first variety, usually B. distachyon).
@@ -146,9 +208,17 @@ public class FillColors {
         // of the most similar gene in the model.
         // In addition, if the chromosome of such a variety gene is unknown, we assign
         // the same chromosome of the gene selected in the model.
+        // All the genes are aligned against the model in a single batch (see BatchAligner).
+        List<String> model = new ArrayList<>();
+        for(Gene g: vModelo.genes) model.add(g.protein);
+        List<String> others = new ArrayList<>();
+        for(int i=1; i<variedades.size(); i++)
+            for(Gene g: variedades.get(i).genes) others.add(g.protein);
+        BatchScores batch = BatchAligner.allVsAll(ScoringMatrix.BLOSUM62, others, model, GAP_OPEN, GAP_EXTN);
+        int row = 0;
         for(int i=1; i<variedades.size(); i++) {
             for(Gene g: variedades.get(i).genes){
-                Gene geneModelo = mostSimilarGene(g, vModelo);
+                Gene geneModelo = vModelo.genes[batch.best(row++)]; // Same as mostSimilarGene(g, vModelo)
                 g.color = geneModelo.color;
                 if (g.getChrNumber() == -1) {
                     g.chr = geneModelo.chr;
@@ -165,17 +235,17 @@ public class FillColors {
     // The score given by N/W is used to find out such a most similar gene.
     // This is done in parallel.
     protected static Gene mostSimilarGene(final Gene g, final Variety vModelo) {
-        // Prepare parallel execution
-        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        // Prepare parallel execution (the pool is shared by all the alignments of the program)
         List<Future<NWResult>> execs = new ArrayList<>();
+        QueryProfile query = profile(g.protein);
                 
-        execs.add(executorService.submit(() -> needlemanWunsch(g.protein, vModelo.genes[0])));
+        execs.add(AlignmentScheduler.submit(() -> needlemanWunsch(query, vModelo.genes[0])));
         assert(! execs.isEmpty());
         // Next is the same than for(int i=1; i<vModelo.genes.length; i++)
         // but creates immutable objects i that can be used inside
         // a lambda expression.
         for(Integer i: IntStream.rangeClosed(1, vModelo.genes.length-1).boxed().collect(Collectors.toList())) {
-            execs.add(executorService.submit(() -> needlemanWunsch(g.protein, vModelo.genes[i])));
+            execs.add(AlignmentScheduler.submit(() -> needlemanWunsch(query, vModelo.genes[i])));
         }
         NWResult bestResult = null;
         for(Future<NWResult> f: execs) try {
@@ -184,7 +254,6 @@ public class FillColors {
                 bestResult = f.get();
             }
         } catch (Exception x) { x.printStackTrace(); }
-        executorService.shutdownNow();
         return bestResult.gene;
     }
     
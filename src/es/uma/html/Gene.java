@@ -71,6 +71,11 @@ public class Gene implements Comparable<Object> {
     }
 
     public int getChrNumber() {
+        return getChrNumber(chr);
+    }
+
+    // Number (1 to 5) of the chromosome in the name of a sequence, or -1.
+    public static int getChrNumber(String chr) {
         int ret=0;
         for(int i=0; i<chr.length(); i++){
             if (Character.isDigit(chr.charAt(i))){ 
@@ -12,6 +12,10 @@ import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import nw.AlignmentResult;
+import nw.AlignmentScheduler;
+import nw.QueryProfile;
+import nw.ScoreCache;
 
 /* This program generates a beautiful diagram with one column per Brachypodium variety.
  * Diagram is in SVG format, it is interactive and can be open in a browser.
@@ -98,6 +102,7 @@ public class GenerateSVG {
             //checkSegmentK(varieties);
             // Distribution.showDistributionBdhn1To10(varieties, titles); // This makes sense only when genes has been clasified over Bdhn1 to Bdhn10
         } catch (Exception x) { x.printStackTrace(); }
+        finally { AlignmentScheduler.shutdown(); ScoreCache.closeShared(); }
     }
 
     private static final int GENE_HEIGHT = 20;
@@ -437,20 +442,28 @@ public class GenerateSVG {
         for (Gene g: fase2) if (g.color == null) {
             g.color = FillColors.COLORS[index];
             System.out.println(g.toFasta());
-            double optimalScore = (double)FillColors.needlemanWunsch(g.protein, g).score;
+            QueryProfile query = FillColors.profile(g.protein);
+            double optimalScore = (double)FillColors.selfScore(g.protein);
             int counter = 1;
             StringBuilder sb = new StringBuilder();
+            List<Gene> cluster = new ArrayList<>();
             sb.append(g.toFasta()).append("\n");
+            cluster.add(g);
             for (Gene g2: fase2) if (g2.color == null && !g.protein.equals("")) {
-                FillColors.NWResult result = FillColors.needlemanWunsch(g.protein, g2);
-                if (result.score/optimalScore > 0.95) {
+                FillColors.NWResult result = FillColors.needlemanWunsch(query, g2);
+                if (result.score/optimalScore > FillColors.SIMILARITY && FillColors.similarIdentity(query, result.gene)) {
                     result.gene.color = FillColors.COLORS[index];
                     System.out.println(g2.toFasta());
                     sb.append(g2.toFasta()).append("\n");
+                    cluster.add(g2);
                     counter++;
                 }
             }
-            if (counter>2) try { Files.write(Paths.get(DIR_CLUSTERS+"Cluster_"+String.format("%03d", clusterNum++)+".fasta"), sb.toString().getBytes()); } catch (Exception x) { x.printStackTrace(); }
+            if (counter>2) try {
+                String filename = DIR_CLUSTERS+"Cluster_"+String.format("%03d", clusterNum++)+".fasta";
+                Files.write(Paths.get(filename), sb.toString().getBytes());
+                writeAlignments(filename, cluster);
+            } catch (Exception x) { x.printStackTrace(); }
             else sbResto.append(sb);
             System.out.println(counter + " *************************************************************************");
             index++;
@@ -461,6 +474,8 @@ public class GenerateSVG {
     private static void showAndRemoveGenes(List<Variety> variedades, Gene gene, int chrNum, String filename) {
         int counter = 0;
         StringBuilder sb = new StringBuilder();
+        List<Gene> cluster = new ArrayList<>();
+        cluster.add(gene);
         for (Variety v: variedades)
             System.out.print("\t"+v.name);
         System.out.println();
@@ -470,16 +485,38 @@ public class GenerateSVG {
             for (int i=0; i<v.genes.length; i++) if (v.genes[i] != null && v.genes[i].getChrNumber() == chrNum && gene.color.equals(v.genes[i].color) ) {
                 //System.out.println(v.genes[i].toFasta());
                 sb.append(v.genes[i].toFasta()).append("\n");
+                if (v.genes[i] != gene) cluster.add(v.genes[i]);
                 counter++;
                 System.out.printf("%s(%d)",v.genes[i].dhnCode, v.genes[i].getChrNumber());
                 v.genes[i] = null;
             }
         }
         System.out.println();
-        if (counter>2) try { Files.write(Paths.get(filename), sb.toString().getBytes()); } catch (Exception x) { x.printStackTrace(); }
+        if (counter>2) try {
+            Files.write(Paths.get(filename), sb.toString().getBytes());
+            writeAlignments(filename, cluster);
+        } catch (Exception x) { x.printStackTrace(); }
         else sbResto.append(sb);
         //System.out.println("*************************************************************************");
     }
 
+    // Next to the FASTA file of a cluster (.aln instead of .fasta), the alignment of every gene
+    // of the cluster against the first one.
+    private static void writeAlignments(String filename, List<Gene> cluster) throws IOException {
+        Gene first = cluster.get(0);
+        QueryProfile query = FillColors.profile(first.protein);
+        StringBuilder sb = new StringBuilder();
+        for (Gene g: cluster.subList(1, cluster.size())) {
+            AlignmentResult result = FillColors.align(query, g);
+            sb.append(">").append(first.name).append(" vs ").append(g.name)
+              .append(" score=").append(result.score)
+              .append(" identity=").append(String.format("%.3f", result.identity()))
+              .append(" cigar=").append(result.cigar).append("\n")
+              .append(result.aligned1).append("\n")
+              .append(result.aligned2).append("\n");
+        }
+        Files.write(Paths.get(filename.replaceAll("\\.fasta$", ".aln")), sb.toString().getBytes());
+    }
+
 }
 
@@ -0,0 +1,337 @@
+package es.uma.keyword;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Random access to files compressed with BGZF (the blocked gzip of bgzip/samtools/htslib).
+ *
+ * A BGZF file is a series of gzip members of at most 64KB of uncompressed data, each one with its
+ * compressed size in the extra field "BC", so it is still a valid gzip file (GZIPInputStream reads it).
+ * The uncompressed position of every block is kept in a .gzi index, as bgzip -i does:
+ *   number of entries | (compressed offset, uncompressed offset)*   (little-endian 64-bit integers)
+ * where the first block, at (0, 0), is not stored. The index is built by jumping over the block
+ * headers (nothing is decompressed) and saved next to the file to reuse it.
+ *
+ * Then read() decompresses only the blocks of the requested bytes. The last decompressed block is kept,
+ * since consecutive reads usually fall in it.
+ *
+ * Plain gzip files can be converted once with recompress(). The result is read by the code that
+ * used the original one.
+ *
+ * @author galvez
+ */
+public final class BgzfFile implements AutoCloseable {
+    public static final int BLOCK_DATA = 0xff00;  // Uncompressed bytes per block, as bgzip
+    static final int MAX_BLOCK = 1 << 16;
+    private static final byte[] EOF_BLOCK = {
+        31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    private final FileChannel channel;
+    private final long[] compressed;     // Offset of each block in the file
+    private final long[] uncompressed;   // Offset of its data once uncompressed
+    private final long size;             // Total uncompressed size
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] block = new byte[MAX_BLOCK];
+    private final byte[] data = new byte[MAX_BLOCK];
+    private int cached = -1, cachedLength;
+
+    private BgzfFile(FileChannel channel, long[][] index, long size) {
+        this.channel = channel;
+        this.compressed = index[0];
+        this.uncompressed = index[1];
+        this.size = size;
+    }
+
+    // Opens a BGZF file, with its .gzi index (built if it is missing or older than the file).
+    public static BgzfFile open(String fileName) throws IOException {
+        Path file = Paths.get(fileName), gzi = Paths.get(fileName + ".gzi");
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            if (!isBgzf(channel)) throw new IOException("Not a BGZF file: "+fileName);
+            long[][] index = null;
+            if (Files.exists(gzi) && Files.getLastModifiedTime(gzi).compareTo(Files.getLastModifiedTime(file)) >= 0)
+                index = readIndex(gzi);
+            if (index == null) {
+                index = buildIndex(channel);
+                try {
+                    writeIndex(index, gzi);
+                } catch (IOException x) { System.err.println("Index not saved: "+x.getMessage()); }
+            }
+            return new BgzfFile(channel, index, uncompressedSize(channel, index));
+        } catch (IOException x) {
+            channel.close();
+            throw x;
+        }
+    }
+
+    public static boolean isBgzf(String fileName) {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            return isBgzf(channel);
+        } catch (IOException x) { return false; }
+    }
+
+    private static boolean isBgzf(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(MAX_BLOCK).order(ByteOrder.LITTLE_ENDIAN);
+        return channel.size() >= 18 && blockSize(channel, 0, header) > 0;
+    }
+
+    // Size of the block at pos (from its BC subfield), or -1 if it is not a BGZF block.
+    private static int blockSize(FileChannel channel, long pos, ByteBuffer header) throws IOException {
+        header.clear().limit(12);
+        if (readFully(channel, header, pos) < 12) return -1;
+        if ((header.get(0) & 0xFF) != 31 || (header.get(1) & 0xFF) != 139 || header.get(2) != 8 || (header.get(3) & 4) == 0) return -1;
+        int xlen = header.getShort(10) & 0xFFFF;
+        header.clear().limit(xlen);
+        if (readFully(channel, header, pos + 12) < xlen) return -1;
+        for(int i=0; i+4 <= xlen; ) {
+            int slen = header.getShort(i + 2) & 0xFFFF;
+            if (header.get(i) == 'B' && header.get(i+1) == 'C' && slen == 2) return (header.getShort(i + 4) & 0xFFFF) + 1;
+            i += 4 + slen;
+        }
+        return -1;
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long pos) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, pos + buffer.position() - start) < 0) break;
+        return buffer.position() - start;
+    }
+
+    private static long[][] buildIndex(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(MAX_BLOCK).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer isize = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        long[] c = new long[1024], u = new long[1024];
+        int n = 0;
+        long pos = 0, upos = 0, end = channel.size();
+        while (pos < end) {
+            int bsize = blockSize(channel, pos, header);
+            if (bsize < 0) throw new IOException("Corrupted BGZF block at "+pos);
+            isize.clear();
+            if (readFully(channel, isize, pos + bsize - 4) < 4) throw new IOException("Truncated BGZF block at "+pos);
+            if (n == c.length) {
+                c = Arrays.copyOf(c, 2*n);
+                u = Arrays.copyOf(u, 2*n);
+            }
+            c[n] = pos;
+            u[n++] = upos;
+            upos += isize.getInt(0) & 0xFFFFFFFFL;
+            pos += bsize;
+        }
+        return new long[][]{ Arrays.copyOf(c, n), Arrays.copyOf(u, n) };
+    }
+
+    private static long[][] readIndex(Path gzi) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(gzi)))) {
+            int n = (int) Long.reverseBytes(in.readLong());
+            long[] c = new long[n + 1], u = new long[n + 1];
+            for(int i=1; i<=n; i++) {
+                c[i] = Long.reverseBytes(in.readLong());
+                u[i] = Long.reverseBytes(in.readLong());
+            }
+            return new long[][]{ c, u };
+        } catch (IOException | RuntimeException x) { return null; }  // Built again
+    }
+
+    private static void writeIndex(long[][] index, Path gzi) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(gzi)))) {
+            int n = index[0].length;
+            out.writeLong(Long.reverseBytes(Math.max(n - 1, 0)));
+            for(int i=1; i<n; i++) {
+                out.writeLong(Long.reverseBytes(index[0][i]));
+                out.writeLong(Long.reverseBytes(index[1][i]));
+            }
+        }
+    }
+
+    // Uncompressed offset of the last block plus its size.
+    private static long uncompressedSize(FileChannel channel, long[][] index) throws IOException {
+        int last = index[0].length - 1;
+        if (last < 0) return 0;
+        ByteBuffer header = ByteBuffer.allocate(MAX_BLOCK).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer isize = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        int bsize = blockSize(channel, index[0][last], header);
+        if (bsize < 0 || readFully(channel, isize, index[0][last] + bsize - 4) < 4) throw new IOException("Corrupted BGZF index");
+        return index[1][last] + (isize.getInt(0) & 0xFFFFFFFFL);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    // Index of the block that contains the uncompressed position pos.
+    private int blockOf(long pos) {
+        int lo = 0, hi = uncompressed.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (uncompressed[mid] <= pos) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    private void inflate(int b) throws IOException {
+        if (cached == b) return;
+        cached = -1;
+        cachedLength = inflate(b, block, data, inflater);
+        cached = b;
+    }
+
+    public int blocks() {
+        return compressed.length;
+    }
+
+    // Decompresses the block b into data (with the given buffers, so that several threads can
+    // decompress different blocks at the same time). Returns its uncompressed length.
+    int inflate(int b, byte[] block, byte[] data, Inflater inflater) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+        int bsize = blockSize(channel, compressed[b], buffer);
+        if (bsize < 0) throw new IOException("Corrupted BGZF block at "+compressed[b]);
+        buffer.clear().limit(bsize);
+        if (readFully(channel, buffer, compressed[b]) < bsize) throw new IOException("Truncated BGZF block at "+compressed[b]);
+        int xlen = buffer.getShort(10) & 0xFFFF;
+        int isize = buffer.getInt(bsize - 4);
+        int ret;
+        inflater.reset();
+        inflater.setInput(block, 12 + xlen, bsize - 12 - xlen - 8);
+        try {
+            ret = (isize == 0)? 0 : inflater.inflate(data, 0, isize);
+        } catch (DataFormatException x) { throw new IOException("Corrupted BGZF block at "+compressed[b], x); }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, ret);
+        if (ret != isize || (int) crc.getValue() != buffer.getInt(bsize - 8))
+            throw new IOException("Corrupted BGZF block at "+compressed[b]);
+        return ret;
+    }
+
+    // Reads len uncompressed bytes from pos. Returns how many were read (less at the end of the file).
+    public synchronized int read(long pos, byte[] dst, int off, int len) throws IOException {
+        int ret = 0;
+        while (ret < len && pos < size) {
+            int b = blockOf(pos);
+            inflate(b);
+            int from = (int)(pos - uncompressed[b]);
+            int n = Math.min(len - ret, cachedLength - from);
+            if (n <= 0) {       // Empty block (e.g., the EOF marker)
+                if (b + 1 >= uncompressed.length) break;
+                pos = uncompressed[b + 1];
+                continue;
+            }
+            System.arraycopy(data, from, dst, off + ret, n);
+            ret += n;
+            pos += n;
+        }
+        return ret;
+    }
+
+    // Sequential reading from the uncompressed position pos.
+    public InputStream openStream(long pos) {
+        return new InputStream() {
+            private long p = pos;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return (read(one, 0, 1) <= 0)? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                int n = BgzfFile.this.read(p, b, off, Math.min(len, BLOCK_DATA));
+                if (n <= 0) return -1;
+                p += n;
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        channel.close();
+    }
+
+    // Writes the data of in as BGZF into out, and its .gzi index next to it.
+    public static void compress(InputStream in, Path out) throws IOException {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] input = new byte[BLOCK_DATA], output = new byte[MAX_BLOCK];
+        long[] c = new long[1024], u = new long[1024];
+        int n = 0;
+        long pos = 0, upos = 0;
+        try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(out), 1 << 20)) {
+            int len;
+            while ((len = readBlock(in, input)) > 0) {
+                deflater.reset();
+                deflater.setInput(input, 0, len);
+                deflater.finish();
+                int clen = deflater.deflate(output, 18, output.length - 18 - 8);
+                if (!deflater.finished()) throw new IOException("Block not compressible");
+                int bsize = 18 + clen + 8;
+                ByteBuffer header = ByteBuffer.wrap(output).order(ByteOrder.LITTLE_ENDIAN);
+                header.put(0, (byte) 31).put(1, (byte) 139).put(2, (byte) 8).put(3, (byte) 4)
+                      .putInt(4, 0).put(8, (byte) 0).put(9, (byte) 255).putShort(10, (short) 6)
+                      .put(12, (byte) 'B').put(13, (byte) 'C').putShort(14, (short) 2).putShort(16, (short)(bsize - 1));
+                CRC32 crc = new CRC32();
+                crc.update(input, 0, len);
+                header.putInt(18 + clen, (int) crc.getValue()).putInt(18 + clen + 4, len);
+                os.write(output, 0, bsize);
+                if (n == c.length) {
+                    c = Arrays.copyOf(c, 2*n);
+                    u = Arrays.copyOf(u, 2*n);
+                }
+                c[n] = pos;
+                u[n++] = upos;
+                pos += bsize;
+                upos += len;
+            }
+            os.write(EOF_BLOCK);
+            c = Arrays.copyOf(c, n + 1);
+            u = Arrays.copyOf(u, n + 1);
+            c[n] = pos;
+            u[n++] = upos;
+        } finally {
+            deflater.end();
+        }
+        writeIndex(new long[][]{ c, u }, Paths.get(out + ".gzi"));
+    }
+
+    private static int readBlock(InputStream in, byte[] buffer) throws IOException {
+        int n = 0, r;
+        while (n < buffer.length && (r = in.read(buffer, n, buffer.length - n)) > 0) n += r;
+        return n;
+    }
+
+    // Converts a plain gzip file into BGZF in place (once: BGZF files are left as they are).
+    public static boolean recompress(String fileName) throws IOException {
+        if (isBgzf(fileName)) return false;
+        Path file = Paths.get(fileName), tmp = Paths.get(fileName + ".tmp");
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file), 1 << 16)) {
+            compress(in, tmp);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(Paths.get(tmp + ".gzi"), Paths.get(fileName + ".gzi"), StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+}
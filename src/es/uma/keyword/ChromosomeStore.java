@@ -0,0 +1,124 @@
+package es.uma.keyword;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import es.uma.motif.FMIndex;
+import es.uma.motif.PackedSequence;
+import es.uma.motif.SeedIndex;
+
+/**
+ * Chromosomes read from FASTA files (the first record of each one) as PackedSequences mapped into memory.
+ *
+ * The first time, each FASTA file is converted into a binary file next to it (FASTA + ".pks", see
+ * PackedSequence.write), without line ends and with 2 bits per base. It is converted again only if the
+ * FASTA file is newer. Later, the binary file is just mapped: nothing is read until it is used, the pages
+ * are shared by every thread and JVM of the machine through the cache of the OS, and the chromosomes
+ * already used are kept, so changing from one to another costs nothing. If the binary file cannot be
+ * written, the chromosome is kept in the heap.
+ *
+ * index() does the same with the FM-index of each chromosome (FASTA + ".fmi"), built only the first time
+ * it is asked for, since it takes some minutes and about 6 bytes per base for a whole chromosome. seeds()
+ * keeps the SeedIndex of each chromosome, only in memory, to place genes allowing differences.
+ *
+ * @author galvez
+ */
+public final class ChromosomeStore {
+    private static final int CHUNK = 1 << 24;
+
+    private final String fastaPattern;  // %s is the name of the chromosome
+    private final ConcurrentHashMap<String, PackedSequence> chromosomes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, FMIndex> indexes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, SeedIndex> seeds = new ConcurrentHashMap<>();
+
+    public ChromosomeStore(String fastaPattern) {
+        this.fastaPattern = fastaPattern;
+    }
+
+    // Chromosome with the given name, converted and mapped the first time. Any thread can use it.
+    public PackedSequence get(String name) throws IOException {
+        PackedSequence ret = chromosomes.get(name);
+        if (ret == null) {
+            synchronized (this) {  // Only one conversion at a time
+                ret = chromosomes.get(name);
+                if (ret == null) {
+                    ret = load(String.format(fastaPattern, name));
+                    chromosomes.put(name, ret);
+                }
+            }
+        }
+        return ret;
+    }
+
+    // FM-index of the chromosome with the given name, built and mapped the first time. Any thread can use it.
+    public FMIndex index(String name) throws IOException {
+        FMIndex ret = indexes.get(name);
+        if (ret == null) {
+            PackedSequence chr = get(name);
+            synchronized (this) {
+                ret = indexes.get(name);
+                if (ret == null) {
+                    Path fasta = Paths.get(String.format(fastaPattern, name)), binary = Paths.get(fasta + ".fmi");
+                    if (Files.exists(binary) && Files.getLastModifiedTime(binary).compareTo(Files.getLastModifiedTime(fasta)) >= 0)
+                        ret = FMIndex.map(binary);
+                    else {
+                        ret = FMIndex.build(chr);
+                        try {
+                            ret.write(binary);
+                            ret = FMIndex.map(binary);
+                        } catch (IOException x) {
+                            System.err.println("FM-index not saved: "+x.getMessage());
+                        }
+                    }
+                    indexes.put(name, ret);
+                }
+            }
+        }
+        return ret;
+    }
+
+    // Minimizers of the chromosome with the given name (see SeedIndex), built in memory the first time.
+    public SeedIndex seeds(String name) throws IOException {
+        SeedIndex ret = seeds.get(name);
+        if (ret == null) {
+            PackedSequence chr = get(name);
+            synchronized (this) {
+                ret = seeds.get(name);
+                if (ret == null) {
+                    ret = SeedIndex.build(chr);
+                    seeds.put(name, ret);
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static PackedSequence load(String fastaFile) throws IOException {
+        Path fasta = Paths.get(fastaFile), binary = Paths.get(fastaFile + ".pks");
+        if (Files.exists(binary) && Files.getLastModifiedTime(binary).compareTo(Files.getLastModifiedTime(fasta)) >= 0)
+            return PackedSequence.map(binary);
+        PackedSequence ret = convert(fastaFile);
+        try {
+            ret.write(binary);
+            return PackedSequence.map(binary);
+        } catch (IOException x) {
+            System.err.println("Chromosome not saved: "+x.getMessage());
+        }
+        return ret;
+    }
+
+    // First record of the FASTA file, read in pieces from its index.
+    static PackedSequence convert(String fastaFile) throws IOException {
+        try (FastaIndex index = FastaIndex.open(fastaFile)) {
+            if (index.entries().isEmpty()) throw new IOException("No sequence in "+fastaFile);
+            FastaIndex.Entry chr = index.entries().get(0);
+            if (chr.length > Integer.MAX_VALUE) throw new IOException("Chromosome too long: "+chr.name);
+            PackedSequence.Builder packed = PackedSequence.dna((int) chr.length);
+            for(long from=0; from<chr.length; from+=CHUNK)
+                packed.append(index.fetch(chr, from, Math.min(from + CHUNK, chr.length)));
+            return packed.build();
+        }
+    }
+}
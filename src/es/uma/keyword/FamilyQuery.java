@@ -0,0 +1,69 @@
+package es.uma.keyword;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Search of several families of genes (see GeneFamily) in a single pass over an annotation file.
+ *
+ * The values of all the conditions go into one KeywordScanner, where each one sets the bit of the
+ * families that use it (family i has bit i % 32). Any line with one of them contains, at least, a
+ * condition of those families, so only these lines are split into columns and checked against them.
+ * The rest of the file costs the same whatever the number of families.
+ *
+ * @author galvez
+ */
+public final class FamilyQuery {
+    public final List<GeneFamily> families;
+    private final KeywordScanner scanner;
+
+    public FamilyQuery(List<GeneFamily> families) {
+        this.families = new ArrayList<>(families);
+        List<String> values = new ArrayList<>();
+        List<Integer> bits = new ArrayList<>();
+        for(int f=0; f<families.size(); f++)
+            for(GeneFamily.Condition[] alternative: families.get(f).alternatives)
+                for(GeneFamily.Condition c: alternative) {
+                    values.add(c.value);
+                    bits.add(1 << (f & 31));
+                }
+        scanner = new KeywordScanner(values.toArray(new String[0]), bits.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    // For each family, the lines of the file that belong to it. The keywords of each Match are the alternatives found.
+    public List<List<KeywordScanner.Match>> find(Path file) throws IOException {
+        Map<String, Integer> columns = columns(file);
+        List<List<KeywordScanner.Match>> ret = new ArrayList<>();
+        for(int f=0; f<families.size(); f++) ret.add(new ArrayList<>());
+        scanner.scan(file, (line, bits) -> {
+            if (line.startsWith("#")) return;  // Header
+            String[] pieces = line.split("\t");
+            for(int f=0; f<families.size(); f++)
+                if ((bits & (1 << (f & 31))) != 0) {
+                    int found = families.get(f).matches(line, pieces, columns);
+                    if (found != 0) ret.get(f).add(new KeywordScanner.Match(line, found));
+                }
+        });
+        return ret;
+    }
+
+    // Position of each column (in upper case) according to the header of the file.
+    private static Map<String, Integer> columns(Path file) throws IOException {
+        Map<String, Integer> ret = new HashMap<>();
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String header = in.readLine();
+            if (header != null && header.startsWith("#")) {
+                String[] names = header.substring(1).split("\t");
+                for(int i=0; i<names.length; i++) ret.putIfAbsent(names[i].trim().toUpperCase(), i);
+            }
+        }
+        return ret;
+    }
+}
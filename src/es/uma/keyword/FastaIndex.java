@@ -0,0 +1,248 @@
+package es.uma.keyword;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of a FASTA file in the .fai format of samtools faidx, to read a record or a region of it
+ * without parsing the rest of the file. Each line of the index is:
+ *   NAME  LENGTH  OFFSET  LINEBASES  LINEWIDTH
+ * where NAME is the first word of the header, OFFSET the position of its first residue and every line
+ * of the record but the last one has LINEBASES residues in LINEWIDTH bytes (with the line end).
+ *
+ * The FASTA file can also be compressed with BGZF (see BgzfFile), as with samtools faidx.
+ *
+ * open() builds the index next to the FASTA file the first time (or when the FASTA file is newer) and
+ * reuses it later. If it cannot be written, it is only kept in memory.
+ *
+ * @author galvez
+ */
+public final class FastaIndex implements AutoCloseable {
+    public static class Entry {
+        public final String name;
+        public final long length;
+        public final long offset;
+        public final int lineBases;
+        public final int lineWidth;
+
+        Entry(String name, long length, long offset, int lineBases, int lineWidth) {
+            this.name = name;
+            this.length = length;
+            this.offset = offset;
+            this.lineBases = lineBases;
+            this.lineWidth = lineWidth;
+        }
+
+        // Position in the file of the residue pos (0-based).
+        long position(long pos) {
+            return offset + (pos / lineBases) * lineWidth + pos % lineBases;
+        }
+
+        @Override
+        public String toString() {
+            return name+"\t"+length+"\t"+offset+"\t"+lineBases+"\t"+lineWidth;
+        }
+    }
+
+    private final FileChannel channel;  // Plain FASTA file
+    private final BgzfFile bgzf;        // or compressed with BGZF
+    private final List<Entry> entries;
+    private final Map<String, Entry> byName = new HashMap<>();
+    private PrefixIndex<Entry> sorted;  // By name, built when needed
+
+    private FastaIndex(FileChannel channel, BgzfFile bgzf, List<Entry> entries) {
+        this.channel = channel;
+        this.bgzf = bgzf;
+        this.entries = entries;
+        for(Entry e: entries) byName.putIfAbsent(e.name, e);
+    }
+
+    // Opens a plain FASTA file, or a .gz one compressed with BGZF (offsets are then in the uncompressed data, as in samtools).
+    public static FastaIndex open(String fastaFile) throws IOException {
+        Path fasta = Paths.get(fastaFile), fai = Paths.get(fastaFile + ".fai");
+        BgzfFile bgzf = fastaFile.endsWith(".gz")? BgzfFile.open(fastaFile) : null;
+        try {
+            List<Entry> entries;
+            if (Files.exists(fai) && Files.getLastModifiedTime(fai).compareTo(Files.getLastModifiedTime(fasta)) >= 0) {
+                entries = read(fai);
+            } else {
+                if (bgzf == null) entries = build(fastaFile);
+                else try (InputStream in = new BufferedInputStream(bgzf.openStream(0), 1 << 16)) {
+                    entries = build(in, fastaFile);
+                }
+                try {
+                    write(entries, fai);
+                } catch (IOException x) { System.err.println("Index not saved: "+x.getMessage()); }
+            }
+            return new FastaIndex((bgzf == null)? FileChannel.open(fasta, StandardOpenOption.READ) : null, bgzf, entries);
+        } catch (IOException x) {
+            if (bgzf != null) bgzf.close();
+            throw x;
+        }
+    }
+
+    // Scans the FASTA file. As samtools, it fails if the lines of a record have different lengths.
+    public static List<Entry> build(String fastaFile) throws IOException {
+        List<Entry> ret = new ArrayList<>();
+        try (FastaReader in = new FastaReader(fastaFile)) {
+            for(FastaReader.Record r: in) {
+                if (r.isIrregular()) throw new IOException("Different line length in sequence "+r.name+" of "+fastaFile);
+                ret.add(new Entry(firstWord(r.name), r.length(), r.offset, r.lineBases, r.lineBytes));
+            }
+        }
+        return ret;
+    }
+
+    // Same scan as FastaReader over a stream (for compressed files), counting the positions of the bytes.
+    static List<Entry> build(InputStream in, String fastaFile) throws IOException {
+        List<Entry> ret = new ArrayList<>();
+        StringBuilder header = new StringBuilder();
+        String name = null;
+        long pos = 0, offset = 0, length = 0;
+        int lineBases = -1, lineWidth = -1;
+        boolean last = false;
+        for(int c = in.read(); c >= 0; ) {
+            if (c == '>') {
+                if (name != null) ret.add(new Entry(name, length, offset, Math.max(lineBases, 1), Math.max(lineWidth, 1)));
+                header.setLength(0);
+                while (c >= 0 && c != '\n') {
+                    header.append((char) c);
+                    c = in.read();
+                    pos++;
+                }
+                name = firstWord(header.toString().trim());
+                offset = (c < 0)? pos : ++pos;
+                length = 0;
+                lineBases = lineWidth = -1;
+                last = false;
+            } else {
+                int bases = 0, bytes = 0;
+                boolean cr = false;
+                while (c >= 0 && c != '\n') {
+                    cr = (c == '\r');
+                    bases++;
+                    bytes++;
+                    c = in.read();
+                }
+                if (cr) bases--;
+                if (c >= 0) bytes++;
+                pos += bytes;
+                if (name != null) {
+                    if (lineBases < 0) {
+                        lineBases = bases;
+                        lineWidth = bytes;
+                    } else if (last || bases > lineBases)
+                        throw new IOException("Different line length in sequence "+name+" of "+fastaFile);
+                    if (bases < lineBases || bytes != lineWidth) last = true;
+                    length += bases;
+                }
+            }
+            if (c >= 0) c = in.read();
+        }
+        if (name != null) ret.add(new Entry(name, length, offset, Math.max(lineBases, 1), Math.max(lineWidth, 1)));
+        return ret;
+    }
+
+    static String firstWord(String header) {
+        int from = header.startsWith(">")? 1 : 0, to = from;
+        while (to < header.length() && !Character.isWhitespace(header.charAt(to))) to++;
+        return header.substring(from, to);
+    }
+
+    private static List<Entry> read(Path fai) throws IOException {
+        List<Entry> ret = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(fai, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                String[] pieces = line.split("\t");
+                ret.add(new Entry(pieces[0], Long.parseLong(pieces[1]), Long.parseLong(pieces[2]),
+                        Integer.parseInt(pieces[3]), Integer.parseInt(pieces[4])));
+            }
+        }
+        return ret;
+    }
+
+    private static void write(List<Entry> entries, Path fai) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(fai, StandardCharsets.UTF_8))) {
+            for(Entry e: entries) out.print(e + "\n");
+        }
+    }
+
+    public List<Entry> entries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    public Entry entry(String name) {
+        return byName.get(name);
+    }
+
+    // Records whose name starts with prefix (as LookForKeyword looks for the genes), in alphabetical order.
+    public synchronized List<Entry> startingWith(String prefix) {
+        if (sorted == null) sorted = new PrefixIndex<>(entries, e -> e.name);
+        return sorted.startingWith(prefix);
+    }
+
+    public String fetch(String name) throws IOException {
+        Entry e = entry(name);
+        return (e == null)? null : fetch(e, 0, e.length);
+    }
+
+    // Residues from start to end, both included and 1-based, as in the regions of samtools (chr:start-end).
+    public String fetch(String name, long start, long end) throws IOException {
+        Entry e = entry(name);
+        return (e == null)? null : fetch(e, Math.max(start, 1) - 1, Math.min(end, e.length));
+    }
+
+    // Region as name, name:start or name:start-end (commas in the numbers are allowed).
+    public String fetchRegion(String region) throws IOException {
+        if (entry(region) != null) return fetch(region);
+        int colon = region.lastIndexOf(':');
+        if (colon < 0) return null;
+        String name = region.substring(0, colon), range = region.substring(colon + 1).replace(",", "");
+        int dash = range.indexOf('-');
+        long start = Long.parseLong((dash < 0)? range : range.substring(0, dash));
+        long end = (dash < 0)? Long.MAX_VALUE : Long.parseLong(range.substring(dash + 1));
+        return fetch(name, start, end);
+    }
+
+    // Residues from start (included) to end (excluded), 0-based. Only the bytes of the region are read.
+    public String fetch(Entry e, long start, long end) throws IOException {
+        if (start >= end) return "";
+        long from = e.position(start), to = e.position(end - 1) + 1;
+        if (to - from > Integer.MAX_VALUE - 8) throw new IOException("Region too long: "+e.name);
+        byte[] bytes = new byte[(int)(to - from)];
+        if (bgzf != null) {
+            if (bgzf.read(from, bytes, 0, bytes.length) < bytes.length) throw new IOException("Truncated FASTA file: "+e.name);
+        } else {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining())
+                if (channel.read(buffer, from + buffer.position()) < 0) throw new IOException("Truncated FASTA file: "+e.name);
+        }
+        int n = 0;
+        for(byte b: bytes)
+            if (b != '\n' && b != '\r') bytes[n++] = b;
+        return new String(bytes, 0, n, StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) channel.close();
+        if (bgzf != null) bgzf.close();
+    }
+}
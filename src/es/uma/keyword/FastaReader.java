@@ -0,0 +1,224 @@
+package es.uma.keyword;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reader of plain FASTA files mapped into memory, so that nothing is read until it is used.
+ *
+ * Records are produced lazily while iterating: the scan only looks for the line ends, and each record
+ * is a view (a CharSequence) over the mapped bytes of its residues. When all the lines of a record have
+ * the same width (except the last one, as in the files of Phytozome) the position of a residue is
+ * computed directly, as in the .fai indexes of samtools; otherwise its residues are copied once into
+ * a byte array. Nothing else is kept, so a whole genome can be traversed without holding it in the heap.
+ *
+ * Files of any size are mapped in segments of 1GB. The mapping lasts while any record is in use, even
+ * after close(), which only releases the file.
+ *
+ * @author galvez
+ */
+public final class FastaReader implements Iterable<FastaReader.Record>, AutoCloseable {
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final long size;
+
+    public FastaReader(String fileName) throws IOException {
+        this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        this.size = channel.size();
+        this.segments = new MappedByteBuffer[(int)((size + SEGMENT_MASK) >>> SEGMENT_BITS)];
+        for(int s=0; s<segments.length; s++) {
+            long from = (long)s << SEGMENT_BITS;
+            segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(size - from, 1L << SEGMENT_BITS));
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    byte byteAt(long pos) {
+        return segments[(int)(pos >>> SEGMENT_BITS)].get((int)(pos & SEGMENT_MASK));
+    }
+
+    // Copies len bytes from pos (they may cross segments).
+    void copy(long pos, byte[] dst, int off, int len) {
+        while (len > 0) {
+            ByteBuffer seg = segments[(int)(pos >>> SEGMENT_BITS)].duplicate();
+            int i = (int)(pos & SEGMENT_MASK);
+            int n = Math.min(len, seg.limit() - i);
+            seg.position(i);
+            seg.get(dst, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    // Position of the next '\n' from pos, or the size of the file.
+    long lineEnd(long pos) {
+        while (pos < size) {
+            MappedByteBuffer seg = segments[(int)(pos >>> SEGMENT_BITS)];
+            long base = pos & ~SEGMENT_MASK;
+            for(int i=(int)(pos & SEGMENT_MASK), lim=seg.limit(); i<lim; i++)
+                if (seg.get(i) == '\n') return base + i;
+            pos = base + seg.limit();
+        }
+        return size;
+    }
+
+    // Header line (with its '>', as in Sequence.name) from pos to the end of the line.
+    private String line(long pos, long end) {
+        if (end > pos && byteAt(end-1) == '\r') end--;
+        byte[] bytes = new byte[(int)(end - pos)];
+        copy(pos, bytes, 0, bytes.length);
+        return new String(bytes, Charset.defaultCharset());
+    }
+
+    // Record whose header starts at pos.
+    Record record(long pos) {
+        long eol = lineEnd(pos);
+        String name = line(pos, eol);
+        long start = Math.min(eol + 1, size), p = start, residues = 0;
+        int lineBases = -1, lineBytes = -1;
+        boolean regular = true, last = false;
+        while (p < size && byteAt(p) != '>') {
+            long e = lineEnd(p);
+            int bytes = (int)(Math.min(e + 1, size) - p);
+            int bases = (int)(e - p);
+            if (bases > 0 && byteAt(e-1) == '\r') bases--;
+            if (lineBases < 0) {
+                lineBases = bases;
+                lineBytes = bytes;
+            } else if (last || bases > lineBases) regular = false;
+            if (bases < lineBases || bytes != lineBytes) last = true;  // Only the last line can be shorter
+            residues += bases;
+            p = e + 1;
+        }
+        if (residues > Integer.MAX_VALUE) throw new UncheckedIOException(new IOException("Sequence too long: "+name));
+        Record ret = new Record(name, start, (int) residues, Math.max(lineBases, 1), Math.max(lineBytes, 1), Math.min(p, size));
+        if (!regular) ret.data = ret.copyResidues();
+        return ret;
+    }
+
+    @Override
+    public Iterator<Record> iterator() {
+        return new Iterator<Record>() {
+            private long pos = first();
+
+            private long first() {
+                long p = 0;
+                while (p < size && byteAt(p) != '>') p = lineEnd(p) + 1;
+                return Math.min(p, size);
+            }
+
+            @Override
+            public boolean hasNext() {
+                return pos < size;
+            }
+
+            @Override
+            public Record next() {
+                if (pos >= size) throw new NoSuchElementException();
+                Record ret = record(pos);
+                pos = ret.end;
+                return ret;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * A record of the file: its header line and a view of its residues (without line ends).
+     */
+    public final class Record implements CharSequence {
+        public final String name;
+        public final long offset;   // Position in the file of the first residue
+        private final int length;
+        final int lineBases, lineBytes;
+        final long end;             // Position of the next record
+        private byte[] data;        // Residues, only if the lines of the record are irregular
+
+        Record(String name, long offset, int length, int lineBases, int lineBytes, long end) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+            this.lineBases = lineBases;
+            this.lineBytes = lineBytes;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        // Whether the lines of the record have different widths (it cannot be indexed as in .fai files).
+        public boolean isIrregular() {
+            return data != null;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) throw new IndexOutOfBoundsException("Index: "+index);
+            if (data != null) return (char)(data[index] & 0xFF);
+            return (char)(byteAt(offset + (long)(index / lineBases) * lineBytes + index % lineBases) & 0xFF);
+        }
+
+        // Residues from start (inclusive) to end (exclusive), copied line by line.
+        public byte[] bytes(int start, int end) {
+            if (start < 0 || end > length || start > end) throw new IndexOutOfBoundsException("Range: "+start+"-"+end);
+            byte[] ret = new byte[end - start];
+            if (data != null) {
+                System.arraycopy(data, start, ret, 0, ret.length);
+                return ret;
+            }
+            for(int i=start; i<end; ) {
+                int inLine = i % lineBases, n = Math.min(lineBases - inLine, end - i);
+                copy(offset + (long)(i / lineBases) * lineBytes + inLine, ret, i - start, n);
+                i += n;
+            }
+            return ret;
+        }
+
+        public byte[] bytes() {
+            return (data != null)? data.clone() : bytes(0, length);
+        }
+
+        // Residues of a record with lines of different widths, skipping the line ends.
+        private byte[] copyResidues() {
+            byte[] ret = new byte[length];
+            int n = 0;
+            for(long p=offset; p<end && n<length; p++) {
+                byte b = byteAt(p);
+                if (b != '\n' && b != '\r') ret[n++] = b;
+            }
+            return ret;
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(bytes(start, end), StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return new String((data != null)? data : bytes(0, length), StandardCharsets.ISO_8859_1);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package es.uma.keyword;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Definition of a family of genes through their annotation in Phytozome (annotation_info.txt files).
+ * A family is a list of alternatives and a gene belongs to it when its line matches any of them. An
+ * alternative is one or more conditions joined with '&' that must hold at the same time:
+ *   KEYWORD        the line contains KEYWORD
+ *   COLUMN=VALUE   the column COLUMN, as named in the header of the file (Pfam, Panther, KOG, GO,
+ *                  arabi-defline...), contains VALUE
+ * Case is ignored (only for ASCII letters, as in KeywordScanner).
+ *
+ * Families are read from a file with a line per family (lines starting with # are comments):
+ *   NAME  ALTERNATIVE  ALTERNATIVE ...
+ * separated by tabs, e.g.
+ *   dehydrins  Pfam=PF00257  DEHYDRIN
+ *   lea3       Pfam=PF03242  Panther=PTHR33509&GO:0009414
+ * Genes that match the first alternative of their family are drawn as squares, and the rest as triangles.
+ *
+ * @author galvez
+ */
+public final class GeneFamily {
+    public final String name;
+    final Condition[][] alternatives;
+
+    static final class Condition {
+        final String column;  // null for any column
+        final String value;   // In upper case
+
+        Condition(String column, String value) {
+            this.column = column;
+            this.value = value;
+        }
+
+        boolean holds(String line, String[] pieces, Map<String, Integer> columns) {
+            if (column == null) return contains(line, value);
+            Integer c = columns.get(column);
+            return c != null && c < pieces.length && contains(pieces[c], value);
+        }
+    }
+
+    private GeneFamily(String name, Condition[][] alternatives) {
+        this.name = name;
+        this.alternatives = alternatives;
+    }
+
+    // Family given as in a line of the file.
+    public static GeneFamily parse(String line) {
+        String[] pieces = line.trim().split("\t");
+        if (pieces.length < 2) throw new IllegalArgumentException("Family without alternatives: "+line);
+        if (pieces.length > 33) throw new IllegalArgumentException("At most 32 alternatives: "+pieces[0]);
+        Condition[][] alternatives = new Condition[pieces.length - 1][];
+        for(int a=0; a<alternatives.length; a++) {
+            String[] conditions = pieces[a + 1].split("&");
+            alternatives[a] = new Condition[conditions.length];
+            for(int c=0; c<conditions.length; c++) {
+                String cond = conditions[c].trim();
+                int eq = cond.indexOf('=');
+                String column = (eq < 0)? null : cond.substring(0, eq).trim().toUpperCase();
+                String value = cond.substring(eq + 1).trim().toUpperCase();
+                if (value.isEmpty()) throw new IllegalArgumentException("Empty condition in family: "+pieces[0]);
+                alternatives[a][c] = new Condition(column, value);
+            }
+        }
+        return new GeneFamily(pieces[0].trim(), alternatives);
+    }
+
+    public static List<GeneFamily> load(String fileName) throws IOException {
+        List<GeneFamily> ret = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null)
+                if (! line.trim().isEmpty() && ! line.startsWith("#"))
+                    ret.add(parse(line));
+        }
+        return ret;
+    }
+
+    // Bit i is set if the line matches the i-th alternative. pieces are the columns of the line.
+    int matches(String line, String[] pieces, Map<String, Integer> columns) {
+        int ret = 0;
+        for(int a=0; a<alternatives.length; a++) {
+            boolean all = true;
+            for(Condition c: alternatives[a])
+                all &= c.holds(line, pieces, columns);
+            if (all) ret |= 1 << a;
+        }
+        return ret;
+    }
+
+    // Whether text contains value (in upper case), ignoring the case of ASCII letters.
+    static boolean contains(String text, String value) {
+        for(int i=0, last=text.length()-value.length(); i<=last; i++) {
+            int j = 0;
+            while (j < value.length()) {
+                char c = text.charAt(i + j);
+                if (c >= 'a' && c <= 'z') c -= 'a' - 'A';
+                if (c != value.charAt(j)) break;
+                j++;
+            }
+            if (j == value.length()) return true;
+        }
+        return false;
+    }
+}
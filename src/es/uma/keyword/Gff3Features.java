@@ -0,0 +1,268 @@
+package es.uma.keyword;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import es.uma.html.Gene;
+
+/**
+ * Features of a given type (gene, mRNA...) of a GFF3 file, kept by columns: the seqid (as an index in a
+ * table of names), start, end, strand and the ID and Name attributes of each one. Lines are parsed as
+ * bytes while reading, and those of other types are skipped before parsing their attributes.
+ *
+ * The raw lines are not kept, except for the features whose name is accepted by keepLine when loading
+ * (e.g., the genes found by LookForKeyword). Any other one is read again from the file when needed, from
+ * the position of its line, only if the file is plain text or compressed with BGZF (see line).
+ *
+ * @author galvez
+ */
+public final class Gff3Features implements AutoCloseable {
+    public final String type;
+    private final String fileName;
+    private final List<String> seqids = new ArrayList<>();
+    private final Map<String, Integer> seqidIndex = new HashMap<>();
+    private int size;
+    private int[] seqid = new int[1024];
+    private int[] start = new int[1024];
+    private int[] end = new int[1024];
+    private byte[] strand = new byte[1024];
+    private long[] offset = new long[1024];   // Of the line in the (uncompressed) file
+    private String[] ids = new String[1024];
+    private String[] names = new String[1024];
+    private final Map<String, Integer> byName = new HashMap<>();
+    private final Map<Integer, String> lines = new HashMap<>();
+    private final int[] tabs = new int[8];  // Of the line being parsed
+    private BgzfFile bgzf;                  // To read the lines not kept, if the file is compressed with BGZF
+
+    Gff3Features(String fileName, String type) {  // Without features until parsed
+        this.fileName = fileName;
+        this.type = type;
+    }
+
+    // Features of the given type in the file (gzip, BGZF or plain text).
+    public static Gff3Features load(String fileName, String type, Predicate<String> keepLine) throws IOException {
+        Gff3Features ret = new Gff3Features(fileName, type);
+        try (InputStream in = fileName.endsWith(".gz")? ParallelGzipInputStream.open(new File(fileName)) : new FileInputStream(fileName)) {
+            ret.parse(in, keepLine);
+        }
+        return ret;
+    }
+
+    private void parse(InputStream in, Predicate<String> keepLine) throws IOException {
+        byte[] buffer = new byte[1 << 16], typeBytes = type.getBytes(StandardCharsets.UTF_8);
+        int length = 0, lineStart = 0, lineNumber = 0;
+        long base = 0;  // Position in the file of buffer[0]
+        boolean eof = false;
+        while (!eof) {
+            if (lineStart > 0) {
+                System.arraycopy(buffer, lineStart, buffer, 0, length - lineStart);
+                base += lineStart;
+                length -= lineStart;
+                lineStart = 0;
+            } else if (length == buffer.length) buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+            int from = length;
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                eof = true;
+                if (length > lineStart) buffer[length] = '\n';  // Last line without line end (there is room after the compaction)
+                else break;
+            } else length += read;
+            for(int i=from, lim=eof? length+1 : length; i<lim; i++)
+                if (buffer[i] == '\n') {
+                    lineNumber++;
+                    int e = (i > lineStart && buffer[i-1] == '\r')? i-1 : i;
+                    if (e - lineStart >= 7 && buffer[lineStart] == '#' && new String(buffer, lineStart, 7, StandardCharsets.US_ASCII).equals("##FASTA"))
+                        return;  // Sequences up to the end of the file
+                    if (e > lineStart && buffer[lineStart] != '#')
+                        line(buffer, lineStart, e, base + lineStart, typeBytes, keepLine, lineNumber);
+                    lineStart = i + 1;
+                }
+        }
+    }
+
+    // Parses a line (from..to in buf) if it has the type of the features.
+    private void line(byte[] buf, int from, int to, long pos, byte[] typeBytes, Predicate<String> keepLine, int lineNumber) throws IOException {
+        int n = 0;
+        for(int i=from; i<to && n<8; i++)
+            if (buf[i] == '\t') tabs[n++] = i;
+        if (n < 8) return;  // Not a feature
+        if (tabs[2] - tabs[1] - 1 != typeBytes.length) return;
+        for(int i=0; i<typeBytes.length; i++)
+            if (buf[tabs[1] + 1 + i] != typeBytes[i]) return;
+        if (size == start.length) grow();
+        try {
+            seqid[size] = seqid(buf, from, tabs[0]);
+            start[size] = parseInt(buf, tabs[2] + 1, tabs[3]);
+            end[size] = parseInt(buf, tabs[3] + 1, tabs[4]);
+        } catch (NumberFormatException x) {
+            throw new IOException("Wrong position in line "+lineNumber+" of "+fileName);
+        }
+        strand[size] = buf[tabs[5] + 1];
+        offset[size] = pos;
+        // Attributes: tag=value;tag=value... with escaped characters as %XX
+        for(int a=tabs[7]+1; a<to; ) {
+            int semicolon = a;
+            while (semicolon < to && buf[semicolon] != ';') semicolon++;
+            int eq = a;
+            while (eq < semicolon && buf[eq] != '=') eq++;
+            if (eq < semicolon) {
+                if (is(buf, a, eq, "ID")) ids[size] = unescape(buf, eq + 1, semicolon);
+                else if (is(buf, a, eq, "Name")) names[size] = unescape(buf, eq + 1, semicolon);
+            }
+            a = semicolon + 1;
+        }
+        if (names[size] == null) names[size] = ids[size];
+        if (names[size] != null) {
+            byName.put(names[size], size);
+            if (keepLine.test(names[size])) lines.put(size, new String(buf, from, to - from, Charset.defaultCharset()));
+        }
+        size++;
+    }
+
+    private int seqid(byte[] buf, int from, int to) {
+        if (size > 0 && is(buf, from, to, seqids.get(seqid[size - 1]))) return seqid[size - 1];  // Features are usually grouped by seqid
+        return seqidIndex.computeIfAbsent(unescape(buf, from, to), name -> {
+            seqids.add(name);
+            return seqids.size() - 1;
+        });
+    }
+
+    private static boolean is(byte[] buf, int from, int to, String s) {
+        if (to - from != s.length()) return false;
+        for(int i=0; i<s.length(); i++)
+            if (buf[from + i] != s.charAt(i)) return false;
+        return true;
+    }
+
+    private static int parseInt(byte[] buf, int from, int to) {
+        if (from >= to) throw new NumberFormatException();
+        int ret = 0;
+        for(int i=from; i<to; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9 || ret > (Integer.MAX_VALUE - d) / 10) throw new NumberFormatException();
+            ret = ret * 10 + d;
+        }
+        return ret;
+    }
+
+    private static String unescape(byte[] buf, int from, int to) {
+        ByteArrayOutputStream ret = null;
+        for(int i=from; i<to; i++)
+            if (buf[i] == '%' && i + 2 < to && Character.digit(buf[i+1], 16) >= 0 && Character.digit(buf[i+2], 16) >= 0) {
+                if (ret == null) {
+                    ret = new ByteArrayOutputStream(to - from);
+                    ret.write(buf, from, i - from);
+                }
+                ret.write(Character.digit(buf[i+1], 16) * 16 + Character.digit(buf[i+2], 16));
+                i += 2;
+            } else if (ret != null) ret.write(buf[i]);
+        return (ret == null)? new String(buf, from, to - from, StandardCharsets.UTF_8) : new String(ret.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private void grow() {
+        int n = 2 * start.length;
+        seqid = Arrays.copyOf(seqid, n);
+        start = Arrays.copyOf(start, n);
+        end = Arrays.copyOf(end, n);
+        strand = Arrays.copyOf(strand, n);
+        offset = Arrays.copyOf(offset, n);
+        ids = Arrays.copyOf(ids, n);
+        names = Arrays.copyOf(names, n);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Feature with the given name (the last one if it is repeated), or -1.
+    public int find(String name) {
+        Integer ret = byName.get(name);
+        return (ret == null)? -1 : ret;
+    }
+
+    public String seqid(int i) {
+        return seqids.get(seqid[i]);
+    }
+
+    public int start(int i) {
+        return start[i];
+    }
+
+    public int end(int i) {
+        return end[i];
+    }
+
+    public char strand(int i) {
+        return (char) strand[i];
+    }
+
+    public String id(int i) {
+        return ids[i];
+    }
+
+    public String name(int i) {
+        return names[i];
+    }
+
+    /*
+    Raw line of the feature i. If it was not kept, it is read again from its position in the file: directly
+    if the file is plain text, and through the BGZF file (opened the first time and kept until close) if it
+    is compressed with BGZF. A plain gzip file would have to be inflated from its start for each line, so
+    this is not done: the lines needed must be kept when loading it.
+    */
+    public synchronized String line(int i) throws IOException {
+        String ret = lines.get(i);
+        if (ret != null) return ret;
+        if (fileName == null) throw new IOException("Line of "+names[i]+" not kept and no file to read it");
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        if (fileName.endsWith(".gz")) {
+            if (bgzf == null) {
+                if (!BgzfFile.isBgzf(fileName))
+                    throw new IOException("Line of "+names[i]+" not kept: "+fileName+" is not compressed with BGZF and would be inflated from its start for each line");
+                bgzf = BgzfFile.open(fileName);
+            }
+            for(long pos = offset[i]; ; pos += buffer.length) {
+                int n = bgzf.read(pos, buffer, 0, buffer.length);
+                if (untilLineEnd(buffer, n, line)) break;
+            }
+        } else try (RandomAccessFile in = new RandomAccessFile(fileName, "r")) {
+            in.seek(offset[i]);
+            while (!untilLineEnd(buffer, in.read(buffer), line));
+        }
+        ret = line.toString(Charset.defaultCharset().name());
+        return ret.endsWith("\r")? ret.substring(0, ret.length() - 1) : ret;
+    }
+
+    // Copies to line the n bytes read up to a line end. Returns true if the line ended.
+    private static boolean untilLineEnd(byte[] buffer, int n, ByteArrayOutputStream line) {
+        for(int k=0; k<n; k++) {
+            if (buffer[k] == '\n') return true;
+            line.write(buffer[k]);
+        }
+        return n < buffer.length;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (bgzf != null) bgzf.close();
+        bgzf = null;
+    }
+
+    // Gene (as used by LookForKeyword and GenerateSVG) of the feature with the given name, or null.
+    public Gene gene(String name) throws IOException {
+        int i = find(name);
+        return (i < 0)? null : new Gene(name, start[i], seqid(i), line(i));
+    }
+}
@@ -0,0 +1,149 @@
+package es.uma.keyword;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Search of several keywords at once, ignoring case, in the lines of a text file (e.g., the
+ * annotation_info.txt files of Phytozome).
+ *
+ * The keywords are compiled into an Aho-Corasick automaton (CACM 18(6), 1975) whose transitions over
+ * bytes are all precomputed (a DFA), with upper and lower case letters going to the same state. The
+ * file is read in blocks of bytes and every byte costs one lookup in the table. Only the lines with
+ * some keyword are converted into Strings, so the memory used does not depend on the size of the file.
+ * Case is ignored only for ASCII letters, which is enough for the keywords of the annotations, and
+ * lines end with \n (or \r\n).
+ *
+ * @author galvez
+ */
+public final class KeywordScanner {
+    private static final int BUFFER = 1 << 20;
+
+    public interface LineHandler {
+        // keywords has the bit i set if the i-th keyword is in the line.
+        void line(String line, int keywords) throws IOException;
+    }
+
+    public static class Match {
+        public final String line;
+        public final int keywords;
+
+        Match(String line, int keywords) {
+            this.line = line;
+            this.keywords = keywords;
+        }
+
+        public boolean contains(int keyword) {
+            return (keywords & (1 << keyword)) != 0;
+        }
+    }
+
+    private final int[] delta;    // Next state: delta[state << 8 | byte]
+    private final int[] output;   // Keywords found when arriving at each state
+
+    public KeywordScanner(String... keywords) {
+        this(keywords, null);
+        if (keywords.length > 32) throw new IllegalArgumentException("At most 32 keywords");
+    }
+
+    // Each keyword sets the bits given in bits (e.g. those of the families that use it, see FamilyQuery).
+    KeywordScanner(String[] keywords, int[] bits) {
+        // Trie of the keywords in upper case
+        List<int[]> next = new ArrayList<>();
+        List<Integer> out = new ArrayList<>();
+        next.add(new int[256]);
+        out.add(0);
+        for(int k=0; k<keywords.length; k++) {
+            int state = 0;
+            for(byte b: keywords[k].getBytes(StandardCharsets.UTF_8)) {
+                int c = upper(b & 0xFF);
+                if (next.get(state)[c] == 0) {
+                    next.get(state)[c] = next.size();
+                    next.add(new int[256]);
+                    out.add(0);
+                }
+                state = next.get(state)[c];
+            }
+            out.set(state, out.get(state) | ((bits == null)? 1 << k : bits[k]));
+        }
+        // Failure links by levels, filling the missing transitions with those of the failure state
+        int n = next.size();
+        delta = new int[n << 8];
+        output = new int[n];
+        int[] fail = new int[n];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(0);
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            output[state] = out.get(state) | output[fail[state]];
+            for(int c=0; c<256; c++) {
+                int s = next.get(state)[c];
+                if (s != 0) {
+                    fail[s] = (state == 0)? 0 : delta[(fail[state] << 8) | c];
+                    delta[(state << 8) | c] = s;
+                    queue.add(s);
+                } else delta[(state << 8) | c] = (state == 0)? 0 : delta[(fail[state] << 8) | c];
+            }
+        }
+        for(int state=0; state<n; state++)   // Lower case letters as upper case ones
+            for(int c='a'; c<='z'; c++)
+                delta[(state << 8) | c] = delta[(state << 8) | (c - 'a' + 'A')];
+    }
+
+    private static int upper(int c) {
+        return (c >= 'a' && c <= 'z')? c - 'a' + 'A' : c;
+    }
+
+    // Calls handler with each line (without its line end) that contains some keyword, in order.
+    public void scan(Path file, LineHandler handler) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            byte[] buffer = new byte[BUFFER];
+            int length = 0, lineStart = 0, state = 0, found = 0;
+            boolean eof = false;
+            while (!eof) {
+                // Keeps the current line at the beginning of the buffer (enlarged if the line does not fit)
+                if (lineStart > 0) {
+                    System.arraycopy(buffer, lineStart, buffer, 0, length - lineStart);
+                    length -= lineStart;
+                    lineStart = 0;
+                } else if (length == buffer.length) buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+                int from = length;
+                int read = channel.read(ByteBuffer.wrap(buffer, length, buffer.length - length));
+                if (read < 0) eof = true;
+                else length += read;
+                for(int i=from; i<length; i++) {
+                    int b = buffer[i] & 0xFF;
+                    if (b == '\n') {
+                        if (found != 0) handler.line(line(buffer, lineStart, i), found);
+                        lineStart = i + 1;
+                        state = found = 0;
+                    } else {
+                        state = delta[(state << 8) | b];
+                        found |= output[state];
+                    }
+                }
+            }
+            if (found != 0 && lineStart < length) handler.line(line(buffer, lineStart, length), found);
+        }
+    }
+
+    // Lines that contain some keyword.
+    public List<Match> find(Path file) throws IOException {
+        List<Match> ret = new ArrayList<>();
+        scan(file, (line, keywords) -> ret.add(new Match(line, keywords)));
+        return ret;
+    }
+
+    private static String line(byte[] buffer, int from, int to) {
+        if (to > from && buffer[to - 1] == '\r') to--;
+        return new String(buffer, from, to - from, StandardCharsets.UTF_8);
+    }
+}
@@ -2,13 +2,14 @@ package es.uma.keyword;
 
 
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
+import java.io.PrintStream;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -19,10 +20,16 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
 import es.uma.motif.Sequence;
 import es.uma.html.Gene;
 
@@ -46,40 +53,149 @@ import es.uma.html.Gene;
 public class LookForKeyword {
     private static final String DIR_NAME = "genomes/Phytozome/PhytozomeV13";
     private static final String INPUT_DATA_FILE = "genomes/Order.txt";
+    // Ecotypes processed at the same time (-Dkeyword.threads), and the memory that each one needs in MB
+    // (-Dkeyword.memory; by default estimated from the size of its files).
+    private static final int THREADS = Integer.getInteger("keyword.threads", Runtime.getRuntime().availableProcessors());
+    private static final int MEMORY_MB = Integer.getInteger("keyword.memory", 0);
+    // Change this to look for another family of genes (see GeneFamily), or give a file with several families
+    // in -Dkeyword.families. Genes with the first alternative (the PFAM code) are drawn as squares.
+    private static final String FAMILY = "dehydrins\tPF00257\tDEHYDRIN";
+
     public static void main(String[] args) throws Exception {
+        String familiesFile = System.getProperty("keyword.families");
+        FamilyQuery query = new FamilyQuery((familiesFile == null)? List.of(GeneFamily.parse(FAMILY)) : GeneFamily.load(familiesFile));
+        PrintStream[] outs = outputs(query.families);
         Path[] filesInOrder = getFilesInOrder();
-        for(Path file: filesInOrder)
-            process(file); 
+        if (THREADS <= 1 || filesInOrder.length <= 1) {
+            for(Path file: filesInOrder)
+                process(file, query, outs, System.err); 
+        } else processInParallel(filesInOrder, query, outs);
+        for(PrintStream out: outs)
+            if (out != System.out) out.close();
+    }
+
+    /*
+    With a single family the result is displayed by console. With several, each one goes to its own file NAME.data.
+    */
+    private static PrintStream[] outputs(List<GeneFamily> families) throws IOException {
+        PrintStream[] ret = new PrintStream[families.size()];
+        for(int f=0; f<ret.length; f++) {
+            if (ret.length == 1) ret[f] = System.out;
+            else {
+                ret[f] = new PrintStream(new BufferedOutputStream(new FileOutputStream(families.get(f).name + ".data")));
+                System.out.println("Family "+families.get(f).name+":\t"+families.get(f).name+".data");
+            }
+        }
+        return ret;
+    }
+
+    /*
+    Output of an ecotype (one per family), kept until the previous ones have been written.
+    */
+    private static class Output {
+        ByteArrayOutputStream[] out;
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Exception error;
+
+        Output(int families) {
+            out = new ByteArrayOutputStream[families];
+            for(int f=0; f<families; f++) out[f] = new ByteArrayOutputStream();
+        }
+    }
+
+    /*
+    Ecotypes are processed in a pool of THREADS threads, but only while their estimated memory fits in the
+    free memory of the JVM. Their outputs are written in the order of INPUT_DATA_FILE, so they are the same
+    as when they are processed one by one.
+    */
+    private static void processInParallel(Path[] filesInOrder, FamilyQuery query, PrintStream[] outs) throws Exception {
+        Runtime rt = Runtime.getRuntime();
+        int budget = (int) Math.max(1, (rt.maxMemory() - (rt.totalMemory() - rt.freeMemory())) * 3 / 4 >> 20);
+        Semaphore memory = new Semaphore(budget);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(THREADS, filesInOrder.length));
+        try {
+            List<Future<Output>> outputs = new ArrayList<>();
+            for(Path file: filesInOrder)
+                outputs.add(pool.submit(() -> {
+                    int mb = Math.min(budget, (MEMORY_MB > 0)? MEMORY_MB : estimateMemory(file.getParent()));
+                    Output ret = new Output(outs.length);
+                    PrintStream[] out = new PrintStream[outs.length];
+                    for(int f=0; f<out.length; f++) out[f] = new PrintStream(ret.out[f]);
+                    memory.acquire(mb);
+                    try (PrintStream err = new PrintStream(ret.err)) {
+                        process(file, query, out, err);
+                    } catch (Exception x) {
+                        ret.error = x;
+                    } finally {
+                        memory.release(mb);
+                    }
+                    return ret;
+                }));
+            for(Future<Output> f: outputs) {
+                Output o = f.get();
+                for(int i=0; i<outs.length; i++) {
+                    o.out[i].writeTo(outs[i]);
+                    outs[i].flush();
+                }
+                o.err.writeTo(System.err);
+                if (o.error != null) throw o.error;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // MB needed to process the files of an ecotype: the compressed files are loaded uncompressed and as Strings.
+    private static int estimateMemory(Path parent) {
+        long bytes = 0;
+        File[] files = parent.toFile().listFiles((dir, name) -> name.endsWith(".gz"));
+        if (files != null)
+            for(File f: files) bytes += f.length();
+        return (int) Math.min(Integer.MAX_VALUE, (bytes * 10 >> 20) + 16);
     }
     
-    private static void process(Path file) throws Exception {
-        HashMap<String, String> cjt = new HashMap<>();
+    private static void process(Path file, FamilyQuery query, PrintStream[] outs, PrintStream err) throws Exception {
+        List<Map<String, String>> cjts = new ArrayList<>();
         String geneName = null;
-        int counter=0;
-        System.out.println(file.getFileName().toString());
+        int[] counter = new int[outs.length];
+        for(PrintStream out: outs) {
+            out.println(file.getFileName().toString());
+            cjts.add(new HashMap<>());
+        }
         try {
-            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8))
-            	// Change these to look for other families of genes
-                if (line.toUpperCase().contains("PF00257") || 
-                    line.toUpperCase().contains("DEHYDRIN")) {
+            List<List<KeywordScanner.Match>> found = query.find(file);  // All the families at once
+            for(int f=0; f<outs.length; f++) {
+                Map<String, String> cjt = cjts.get(f);
+                for (KeywordScanner.Match match : found.get(f)) {
+                    String line = match.line;
                     String transcriptName = line.split("\t")[2];
                     geneName = removeTranscriptNumber(transcriptName);
                     if(cjt.containsKey(geneName)) {
                         // System.err.println("Repeated: "+transcriptName);
                     } else {
-                        counter++;
-                        String shape = line.toUpperCase().contains("PF00257")?"RECT":"TRIANGLE";
+                        counter[f]++;
+                        String shape = match.contains(0)?"RECT":"TRIANGLE";
                         // System.out.println("OK:\t"+transcriptName);
                         cjt.put(geneName, line+"\t"+shape);
                     }
                 }
-        } catch (IOException ex) { ex.printStackTrace(); }
-        System.out.println("Total:\t"+counter);
-        Map<String, Gene> genesAll = loadGff3(file.getParent(), (geneName.endsWith("m")?"mRNA":"gene")); 
-        displayChrLengths(genesAll);
-        List<Sequence> seqsAll = loadFastaPrimaryTranscript(file.getParent());
-        List<Sequence> genesGenome = loadFastaGenesGenome(file.getParent());
-        displaySorted(cjt, genesAll, seqsAll, genesGenome);
+            }
+        } catch (IOException ex) { ex.printStackTrace(err); }
+        for(int f=0; f<outs.length; f++)
+            outs[f].println("Total:\t"+counter[f]);
+        Set<String> found = new HashSet<>();
+        for(Map<String, String> cjt: cjts) found.addAll(cjt.keySet());
+        try (Gff3Features genesAll = loadGff3(file.getParent(), (geneName != null && geneName.endsWith("m")?"mRNA":"gene"), found::contains)) {
+            for(PrintStream out: outs)
+                displayChrLengths(genesAll, out);
+            try (FastaIndex proteins = indexFastaPrimaryTranscript(file.getParent());
+                 FastaIndex genesGenome = indexFastaGenesGenome(file.getParent())) {
+                PrefixIndex<Sequence> seqsAll = (proteins == null)? indexByName(loadFastaPrimaryTranscript(file.getParent())) : null;
+                PrefixIndex<Sequence> genesAllSeqs = (genesGenome == null)? indexByName(loadFastaGenesGenome(file.getParent())) : null;
+                for(int f=0; f<outs.length; f++)
+                    displaySorted(cjts.get(f), genesAll, seqsAll, proteins, genesAllSeqs, genesGenome, outs[f], err);
+            }
+        }
     }
 
     private static String removeTranscriptNumber(String transcriptName) {
@@ -98,79 +214,102 @@ public class LookForKeyword {
     public static List<Sequence> loadFastaGenesGenome(Path parent) {
         return loadFasta(parent, "genes.fasta");
     }
+    // Sequences sorted by their header (without '>') to look for them by name.
+    public static PrefixIndex<Sequence> indexByName(List<Sequence> seqs) {
+        return new PrefixIndex<>(seqs, seq -> seq.name.startsWith(">")? seq.name.substring(1) : seq.name);
+    }
+    // Index (.fai and .gzi) of the proteins when they are compressed with BGZF, null otherwise.
+    public static FastaIndex indexFastaPrimaryTranscript(Path parent) throws IOException {
+        File gz = gzFile(parent, ".protein_primaryTranscriptOnly.fa.gz");
+        return BgzfFile.isBgzf(gz.getPath())? FastaIndex.open(gz.getPath()) : null;
+    }
+    // Index (.fai) of genes.fasta, built the first time. Each gene is read only when it is needed.
+    // null if it cannot be indexed (e.g., lines of different lengths in a gene): then it is loaded whole.
+    public static FastaIndex indexFastaGenesGenome(Path parent) {
+        File[] fileList = parent.toFile().listFiles((dir, name) -> name.endsWith("genes.fasta"));
+        try {
+            return FastaIndex.open(fileList[0].getPath());
+        } catch (IOException x) {
+            System.err.println("Loading without index:\t"+x.getMessage());
+            return null;
+        }
+    }
     private static List<Sequence> loadFasta(Path parent, String end) {
         List<Sequence> ret = null;
         try {
             File[] fileList = parent.toFile().listFiles((dir, name) -> name.endsWith(end));
-            BufferedReader in = null;
-            if (fileList[0].getAbsolutePath().endsWith(".gz"))
-                in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(fileList[0]))));
-            else 
-                in = new BufferedReader(new FileReader(fileList[0]));
+            if (! fileList[0].getAbsolutePath().endsWith(".gz"))
+                return Looker.loadFasta(fileList[0].getPath());   // Mapped into memory
+            BufferedReader in = new BufferedReader(new InputStreamReader(ParallelGzipInputStream.open(gzFile(parent, end))));
             ret = Looker.loadFasta(in);
             in.close();
         } catch (IOException ex) { ex.printStackTrace(); }
         return ret;
     }
     
-    private static Map<String, Gene> loadGff3(Path parent, String toSearch) {
-        HashMap<String, Gene> cjto = new HashMap<>();
+    /*
+    Compressed file of the folder. With -Dbgzf.recompress=true, plain gzip files are converted to BGZF (only once),
+    so that later executions can read the proteins by name with an index.
+    */
+    private static File gzFile(Path parent, String end) throws IOException {
+        File[] fileList = parent.toFile().listFiles((dir, name) -> name.endsWith(end));
+        if (Boolean.getBoolean("bgzf.recompress") && BgzfFile.recompress(fileList[0].getPath()))
+            System.err.println("Recompressed with BGZF:\t"+fileList[0]);
+        return fileList[0];
+    }
+
+    /*
+    Features of the given type (gene or mRNA) in the gff3 file. Only the lines of the genes accepted by keepLine are kept.
+    */
+    public static Gff3Features loadGff3(Path parent, String toSearch, Predicate<String> keepLine) {
         try {
-            File[] fileList = parent.toFile().listFiles((dir, name) -> name.endsWith(".gene.gff3.gz"));
-            BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(fileList[0]))));
-            in.lines().forEach(line -> {
-                String[] pieces = ((String)line).split("\t");
-                if (pieces.length >= 9 && pieces[2].equals(toSearch)){
-                    int init = Integer.parseInt(pieces[3]);
-                    String name = pieces[8].split(";")[1];
-                    name = name.substring(5);
-                    String chr = pieces[0]; //.substring(pieces[0].indexOf("_")+1);
-                    cjto.put(name, new Gene(name, init, chr, line));
-                }
-            });
-            in.close();
+            return Gff3Features.load(gzFile(parent, ".gene.gff3.gz").getPath(), toSearch, keepLine);
         } catch (IOException ex) { ex.printStackTrace(); }
-        return cjto;
+        return new Gff3Features(null, toSearch);
     }
 
-    private static void displaySorted(Map<String, String> set, Map<String, Gene> genesAll, List<Sequence> seqsAll, List<Sequence> genesGenome) throws Exception {
+    private static void displaySorted(Map<String, String> set, Gff3Features genesAll, PrefixIndex<Sequence> seqsAll, FastaIndex proteins,
+                                      PrefixIndex<Sequence> genesAllSeqs, FastaIndex genesGenome, PrintStream out, PrintStream err) throws Exception {
         ArrayList<Gene> list = new ArrayList<>();
-        set.keySet().stream().forEach(name -> { 
-            Gene gen = genesAll.get(name);
-            if (gen == null) System.err.println("MISSING IN GFF3:\t"+name); 
+        for(String name: set.keySet()) {
+            Gene gen = genesAll.gene(name);
+            if (gen == null) err.println("MISSING IN GFF3:\t"+name); 
             else {
                 gen.info = set.get(name);
                 list.add(gen);
             } 
-        } );
+        }
         for(Gene g: list) {
-            g.protein = locate(g.name, seqsAll).data;
-            g.gene = locate(g.name, genesGenome).data;
+            g.protein = (proteins != null)? locate(g.name, proteins) : locate(g.name, seqsAll).data;
+            g.gene = (genesGenome != null)? locate(g.name, genesGenome) : locate(g.name, genesAllSeqs).data;
         }
         Collections.sort(list);
-        list.stream().forEach(System.out::println);
+        list.stream().forEach(out::println);
     }
 
-    private static void displayChrLengths(Map<String, Gene> genesAll) {
+    private static void displayChrLengths(Gff3Features genesAll, PrintStream out) {
         int[] lengths = new int[5];
-        for(Gene g: genesAll.values()){
-            int chr = g.getChrNumber();
-            if (chr != -1 && lengths[chr-1]<g.init) lengths[chr-1] = g.init;
+        for(int i=0; i<genesAll.size(); i++){
+            int chr = Gene.getChrNumber(genesAll.seqid(i));
+            if (chr != -1 && lengths[chr-1]<genesAll.start(i)) lengths[chr-1] = genesAll.start(i);
         }
         for(int i=0; i<5; i++)
-            System.out.println((i+1)+"\t"+lengths[i]);
+            out.println((i+1)+"\t"+lengths[i]);
     }
 
-    private static Sequence locate(String name, List<Sequence> seqsAll) throws Exception {
-        Sequence ret = null;
-        for(Sequence seq: seqsAll){
-            if (seq.name.startsWith(">"+name)) { // contains(name)) {
-                if (ret == null) ret = seq;
-                else throw new Exception("DUPLICATED PROTEIN:\t"+name);
-            }
-        }
-        if (ret == null) ret = Sequence.getEmptySequence(); // Some sequences are missing in the fasta file
-        return ret;
+    private static Sequence locate(String name, PrefixIndex<Sequence> seqsAll) throws Exception {
+        List<Sequence> found = seqsAll.startingWith(name);
+        if (found.size() > 1) throw new Exception("DUPLICATED PROTEIN:\t"+name);
+        if (found.isEmpty()) return Sequence.getEmptySequence(); // Some sequences are missing in the fasta file
+        return found.get(0);
+    }
+
+    private static String locate(String name, FastaIndex index) throws Exception {
+        List<FastaIndex.Entry> found = index.startingWith(name);
+        if (found.size() > 1) throw new Exception("DUPLICATED PROTEIN:\t"+name);
+        if (found.isEmpty()) return Sequence.getEmptySequence().data; // Some sequences are missing in the fasta file
+        FastaIndex.Entry e = found.get(0);
+        return index.fetch(e, 0, e.length);
     }
 
     /*
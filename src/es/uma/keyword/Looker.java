@@ -3,13 +3,14 @@ package es.uma.keyword;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
+import es.uma.motif.FMIndex;
+import es.uma.motif.PackedSequence;
+import es.uma.motif.SeedIndex;
 import es.uma.motif.Sequence;
 import es.uma.motif.ResultPair;
 
@@ -18,14 +19,17 @@ import es.uma.motif.ResultPair;
  * @author galvez
  */
 public class Looker {
-    private static boolean firstLine = true;
-    public static StringBuilder str= new StringBuilder(750_000_000);
+    public static final ChromosomeStore CHROMOSOMES = new ChromosomeStore("G:\\Data_JIC\\IWGSC\\WGAv1.0\\Chromosomes\\chr%s.fa");
+    public static PackedSequence str;  // Chromosome loaded by loadChromosome, 2 bits per base
+    public static FMIndex index;       // and its FM-index, loaded by indexChromosome
+    public static SeedIndex seeds;     // and its minimizers, loaded by seedChromosome
     public static HashMap<String, ResultPair> hm = new HashMap<>();
 
     public static List<Sequence> loadFasta(String filename) {
         List<Sequence> ret = new ArrayList<>();
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(new File(filename))))) {
-            ret = loadFasta(in);
+        try (FastaReader in = new FastaReader(filename)) {
+            for(FastaReader.Record r: in)
+                ret.add(new Sequence(r.name, r.toString()));
         } catch (Exception x) {
             x.printStackTrace();
         }
@@ -34,7 +38,7 @@ public class Looker {
     
     public static List<Sequence> loadFastaGZ(String filename) {
         List<Sequence> ret = new ArrayList<>();
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(filename))))) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(ParallelGzipInputStream.open(new File(filename))))) {
             ret = loadFasta(in);
         } catch (Exception x) {
             x.printStackTrace();
@@ -69,15 +73,28 @@ public class Looker {
     }
 
     public static void loadChromosome(String name) {
-        str.delete(0, Integer.MAX_VALUE);
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(new File("G:\\Data_JIC\\IWGSC\\WGAv1.0\\Chromosomes\\chr"+name+".fa"))))) {
-            in.lines().forEach(l -> {
-                if (firstLine) {
-                    firstLine = false;
-                } else {
-                    str.append(l);
-                }
-            });
+        try {
+            str = CHROMOSOMES.get(name);  // Mapped, converted only the first time
+        } catch (Exception x) {
+            System.out.println(Runtime.getRuntime().maxMemory());
+            x.printStackTrace();
+        }
+    }
+
+    // FM-index of the chromosome for Sequence.locateIn and locateAnyManyTimes (with str), built only the first time.
+    public static void indexChromosome(String name) {
+        try {
+            index = CHROMOSOMES.index(name);
+        } catch (Exception x) {
+            System.out.println(Runtime.getRuntime().maxMemory());
+            x.printStackTrace();
+        }
+    }
+
+    // Minimizers of the chromosome for Sequence.locateIn with differences, built only the first time.
+    public static void seedChromosome(String name) {
+        try {
+            seeds = CHROMOSOMES.seeds(name);
         } catch (Exception x) {
             System.out.println(Runtime.getRuntime().maxMemory());
             x.printStackTrace();
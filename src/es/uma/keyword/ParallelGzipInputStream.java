@@ -0,0 +1,119 @@
+package es.uma.keyword;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Decompression of gzip files using several cores: the blocks of a BGZF file (see BgzfFile) are
+ * independent gzip members whose positions are known, so they are inflated in parallel (a window of
+ * them ahead of the reader) and returned in order as a normal InputStream. The parsers on top
+ * (Looker.loadFasta, Gff3Features) do not change.
+ *
+ * The members of a plain gzip file can only be found by decompressing it, so open() returns a
+ * GZIPInputStream for them (they can be converted once with BgzfFile.recompress). It is also used
+ * with a single thread. The number of threads is given by -Dgzip.threads (by default, one per processor).
+ *
+ * @author galvez
+ */
+public final class ParallelGzipInputStream extends InputStream {
+    public static final int THREADS = Integer.getInteger("gzip.threads", Runtime.getRuntime().availableProcessors());
+    private static final int WINDOW = 4 * THREADS;  // Blocks being decompressed ahead of the reader
+    private static ExecutorService pool;
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<byte[]> BLOCK = ThreadLocal.withInitial(() -> new byte[BgzfFile.MAX_BLOCK]);
+
+    private final BgzfFile file;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private int next;                       // Next block to submit
+    private byte[] current = new byte[0];
+    private int pos;
+
+    private ParallelGzipInputStream(BgzfFile file) {
+        this.file = file;
+    }
+
+    public static InputStream open(File f) throws IOException {
+        if (THREADS > 1 && BgzfFile.isBgzf(f.getPath())) {
+            BgzfFile bgzf = BgzfFile.open(f.getPath());
+            if (bgzf.blocks() > 2) return new ParallelGzipInputStream(bgzf);  // Not worth it for one block and the EOF marker
+            bgzf.close();
+        }
+        return new GZIPInputStream(new FileInputStream(f), 1 << 16);
+    }
+
+    private static synchronized ExecutorService pool() {
+        if (pool == null) {
+            AtomicInteger counter = new AtomicInteger();
+            pool = Executors.newFixedThreadPool(THREADS, r -> {
+                Thread t = new Thread(r, "gzip-inflate-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return pool;
+    }
+
+    // Moves to the next block with data. false at the end of the file.
+    private boolean fill() throws IOException {
+        while (pos >= current.length) {
+            while (pending.size() < WINDOW && next < file.blocks()) {
+                int b = next++;
+                pending.add(pool().submit(() -> {
+                    byte[] data = new byte[BgzfFile.MAX_BLOCK];
+                    int n = file.inflate(b, BLOCK.get(), data, INFLATER.get());
+                    return Arrays.copyOf(data, n);
+                }));
+            }
+            if (pending.isEmpty()) return false;
+            try {
+                current = pending.poll().get();
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException x) {
+                throw (x.getCause() instanceof IOException)? (IOException) x.getCause() : new IOException(x.getCause());
+            }
+            pos = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return fill()? current[pos++] & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!fill()) return -1;
+        int n = Math.min(len, current.length - pos);
+        System.arraycopy(current, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current.length - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for(Future<byte[]> f: pending) f.cancel(false);  // Those running just fail once the file is closed
+        pending.clear();
+        file.close();
+    }
+}
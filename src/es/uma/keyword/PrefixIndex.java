@@ -0,0 +1,57 @@
+package es.uma.keyword;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Items sorted by a name (e.g. the headers of a FASTA file, without '>') to find those whose name
+ * starts with a prefix by binary search, as LookForKeyword looks for the transcripts and proteins of
+ * a gene. Each search costs O(log n) plus the items found, and all of them are returned, so a
+ * prefix shared by two items can still be detected.
+ *
+ * @author galvez
+ */
+public final class PrefixIndex<T> {
+    private final String[] names;
+    private final Object[] items;
+
+    @SuppressWarnings("unchecked")
+    public PrefixIndex(Collection<T> items, Function<T, String> name) {
+        Object[] all = items.toArray();
+        String[] keys = new String[all.length];
+        Integer[] order = new Integer[all.length];
+        for(int i=0; i<all.length; i++) {
+            keys[i] = name.apply((T) all[i]);
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(i -> keys[i]));
+        this.names = new String[all.length];
+        this.items = new Object[all.length];
+        for(int i=0; i<all.length; i++) {
+            names[i] = keys[order[i]];
+            this.items[i] = all[order[i]];
+        }
+    }
+
+    public int size() {
+        return items.length;
+    }
+
+    // Items whose name starts with prefix, in alphabetical order.
+    @SuppressWarnings("unchecked")
+    public List<T> startingWith(String prefix) {
+        int lo = 0, hi = names.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (names[mid].compareTo(prefix) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        List<T> ret = new ArrayList<>(1);
+        for(int i=lo; i<names.length && names[i].startsWith(prefix); i++) ret.add((T) items[i]);
+        return ret;
+    }
+}
@@ -0,0 +1,151 @@
+package es.uma.motif;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Same as Sequence.locateAnyManyTimes for many sequences at once, with a single pass over the chromosome
+ * instead of four scans per sequence.
+ *
+ * The four orientations of every sequence (forward, reverse complementary, reverse and complementary, in
+ * this order) are compiled into an Aho-Corasick automaton (CACM 18(6), 1975) over A, C, G and T, with all
+ * its transitions precomputed, so every base of the chromosome costs one lookup in a table of ints. Any
+ * other base (N, lower case letters...) goes back to the root, as no pattern contains it. The few
+ * sequences with characters other than A, C, G and T are searched one by one with PackedSequence.indexOf.
+ *
+ * The automaton takes about 28 bytes per base of the patterns (four times the length of the sequences).
+ * The hits are printed and registered in hm as locateAnyManyTimes does, sequence by sequence.
+ *
+ * @author galvez
+ */
+public final class BatchLocator {
+    private static final int CHUNK = 1 << 20;
+    private static final String[] ORIENTATIONS = {"Forward", "Forward Reverse Complementary", "Forward Reverse", "Forward Complementary"};
+
+    private final List<Sequence> sequences;
+    private final int[] length;        // Of each sequence
+    private final List<Integer> apart = new ArrayList<>();  // Sequences out of the automaton
+    private int[] delta = new int[4 * 1024];  // Next state: delta[state << 2 | base]
+    private int states = 1;
+    private final int[] report;        // First state with patterns found when arriving at each state (itself or by its failures), or -1
+    private final int[] dict;          // Next state with patterns along the failures, or -1
+    private int[] first;               // First pattern (sequence << 2 | orientation) ending at each state, or -1
+    private int[] next = new int[64];  // Next pattern ending at the same state, or -1
+
+    public BatchLocator(List<Sequence> sequences) {
+        this.sequences = new ArrayList<>(sequences);
+        length = new int[sequences.size()];
+        first = new int[1024];
+        Arrays.fill(first, -1);
+        for(int s=0; s<sequences.size(); s++) {
+            Sequence seq = sequences.get(s);
+            length[s] = seq.data.length();
+            if (length[s] == 0) continue;
+            if (!acgt(seq.data)) {
+                apart.add(s);
+                continue;
+            }
+            String[] patterns = {seq.data, seq.reverseComplementary(), seq.reverse(), seq.complementary()};
+            for(int o=0; o<4; o++) add(patterns[o], s << 2 | o);
+        }
+        delta = Arrays.copyOf(delta, 4 * states);
+        first = Arrays.copyOf(first, states);
+        // Failure links by levels, filling the missing transitions with those of the failure state
+        int[] fail = new int[states], queue = new int[states];
+        report = new int[states];
+        dict = new int[states];
+        dict[0] = -1;
+        report[0] = (first[0] >= 0)? 0 : -1;
+        int head = 0, tail = 0;
+        queue[tail++] = 0;
+        while (head < tail) {
+            int state = queue[head++];
+            for(int c=0; c<4; c++) {
+                int s = delta[(state << 2) | c];
+                if (s != 0) {
+                    fail[s] = (state == 0)? 0 : delta[(fail[state] << 2) | c];
+                    dict[s] = report[fail[s]];
+                    report[s] = (first[s] >= 0)? s : dict[s];
+                    queue[tail++] = s;
+                } else delta[(state << 2) | c] = (state == 0)? 0 : delta[(fail[state] << 2) | c];
+            }
+        }
+    }
+
+    private static boolean acgt(String s) {
+        for(int i=0; i<s.length(); i++)
+            if ("ACGT".indexOf(s.charAt(i)) < 0) return false;
+        return true;
+    }
+
+    private void add(String pattern, int id) {
+        int state = 0;
+        for(int i=0; i<pattern.length(); i++) {
+            int c = "ACGT".indexOf(pattern.charAt(i)), to = delta[(state << 2) | c];
+            if (to == 0) {
+                if (states >= Integer.MAX_VALUE / 4) throw new IllegalArgumentException("Too many sequences for the automaton");
+                if (states == first.length) {
+                    int n = (int) Math.min(2L * states, Integer.MAX_VALUE / 4);
+                    delta = Arrays.copyOf(delta, 4 * n);
+                    first = Arrays.copyOf(first, n);
+                    Arrays.fill(first, states, n, -1);
+                }
+                to = delta[(state << 2) | c] = states++;
+            }
+            state = to;
+        }
+        if (id >= next.length) next = Arrays.copyOf(next, Math.max(2 * next.length, id + 1));
+        next[id] = first[state];  // The same pattern may come from several sequences (or orientations)
+        first[state] = id;
+    }
+
+    // Every sequence in every orientation in the chromosome, registered in hm (that must have a ResultPair for each one).
+    public void locateAnyManyTimes(PackedSequence str, HashMap<String, ResultPair> hm) {
+        int[][] hits = new int[4 * sequences.size()][];
+        int[] count = new int[4 * sequences.size()];
+        byte[] codes = new byte[CHUNK];
+        int state = 0;
+        for(int from=0; from<str.length(); from+=CHUNK) {
+            int to = Math.min(from + CHUNK, str.length());
+            str.codes(from, to, codes);
+            for(int i=0; i<to-from; i++) {
+                int c = codes[i];
+                if (c == 4) {
+                    state = 0;
+                    continue;
+                }
+                state = delta[(state << 2) | c];
+                for(int s=report[state]; s>=0; s=dict[s])
+                    for(int id=first[s]; id>=0; id=next[id]) {
+                        if (hits[id] == null) hits[id] = new int[4];
+                        else if (count[id] == hits[id].length) hits[id] = Arrays.copyOf(hits[id], 2 * count[id]);
+                        hits[id][count[id]++] = from + i - length[id >> 2] + 1;
+                    }
+            }
+        }
+        for(int s: apart) find(sequences.get(s), s, str, hits, count);
+        for(int s=0; s<sequences.size(); s++) {
+            Sequence seq = sequences.get(s);
+            for(int o=0; o<4; o++)
+                for(int h=0; h<count[s << 2 | o]; h++) {
+                    int pos = hits[s << 2 | o][h];
+                    System.out.println("("+seq.name+") "+ORIENTATIONS[o]+" found "+pos);
+                    seq.registerPos(pos, hm);
+                }
+        }
+    }
+
+    private static void find(Sequence seq, int s, PackedSequence str, int[][] hits, int[] count) {
+        String[] patterns = {seq.data, seq.reverseComplementary(), seq.reverse(), seq.complementary()};
+        for(int o=0; o<4; o++) {
+            int id = s << 2 | o;
+            hits[id] = new int[4];
+            for(int pos = str.indexOf(patterns[o]); pos != -1; pos = str.indexOf(patterns[o], pos + 1)) {
+                if (count[id] == hits[id].length) hits[id] = Arrays.copyOf(hits[id], 2 * count[id]);
+                hits[id][count[id]++] = pos;
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package es.uma.motif;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * FM-index of a DNA sequence (e.g., a chromosome) to count and locate exact occurrences of a pattern in
+ * time proportional to its length, instead of scanning the whole sequence.
+ *
+ * The Burrows-Wheeler transform (one byte per symbol: $, A, C, G, T and N) comes from the suffix array,
+ * built in linear time with SA-IS (Nong, Zhang and Chan, 2009). The occurrences of each symbol are kept
+ * every 64 rows, and the suffix array only for the positions multiple of 32 (with a bit per row telling
+ * which rows are kept), so locating an occurrence takes at most 31 steps back through the transform.
+ * The index takes about 1.6 bytes per base; building it needs about 6 bytes per base once, and then it
+ * is saved by write() and mapped by map().
+ *
+ * count and locate(pattern) ignore case and take any character other than A, C, G and T as N. To find
+ * exactly what PackedSequence.indexOf finds in the indexed sequence, use locate(pattern, text), which
+ * checks against the text the occurrences that could differ (those with other characters).
+ *
+ * @author galvez
+ */
+public final class FMIndex {
+    private static final int MAGIC = 0x314D4946;  // "FIM1"
+    private static final int SIGMA = 6;          // $ A C G T N
+    private static final int OCC_RATE = 64;
+    private static final int SA_RATE = 32;
+
+    private final int n;                  // Length of the text with $
+    private final int[] c = new int[SIGMA + 1];  // Rows starting with a symbol smaller than each one
+    private final ByteBuffer bwt;
+    private final IntBuffer occ;          // Occurrences of each symbol before each row multiple of OCC_RATE
+    private final LongBuffer sampled;     // Bit of the rows whose suffix array is kept
+    private final IntBuffer rank;         // Sampled rows before each long of sampled
+    private final IntBuffer samples;      // Suffix array of the sampled rows
+
+    private FMIndex(int n, int[] counts, ByteBuffer bwt, IntBuffer occ, LongBuffer sampled, IntBuffer rank, IntBuffer samples) {
+        this.n = n;
+        for(int s=0; s<SIGMA; s++) c[s + 1] = c[s] + counts[s];
+        this.bwt = bwt;
+        this.occ = occ;
+        this.sampled = sampled;
+        this.rank = rank;
+        this.samples = samples;
+    }
+
+    static int code(char ch) {
+        switch(ch) {
+            case 'A': case 'a': return 1;
+            case 'C': case 'c': return 2;
+            case 'G': case 'g': return 3;
+            case 'T': case 't': return 4;
+            default : return 5;
+        }
+    }
+
+    public static FMIndex build(CharSequence seq) {
+        int n = seq.length() + 1;
+        if (n <= 0) throw new IllegalArgumentException("Sequence too long");
+        byte[] text = new byte[n];
+        for(int i=0; i<n-1; i++) text[i] = (byte) code(seq.charAt(i));
+        int[] sa = new int[n];
+        sais(i -> text[i], sa, n, SIGMA);
+        int[] counts = new int[SIGMA];
+        byte[] bwt = new byte[n];
+        int blocks = n / OCC_RATE + 1, words = (n + 63) >>> 6;
+        int[] occ = new int[blocks * SIGMA];
+        long[] sampled = new long[words];
+        int[] rank = new int[words + 1];
+        int[] samples = new int[(n - 1) / SA_RATE + 1];
+        for(int i=0; i<n; i++) {
+            if (i % OCC_RATE == 0) System.arraycopy(counts, 0, occ, (i / OCC_RATE) * SIGMA, SIGMA);
+            bwt[i] = (sa[i] > 0)? text[sa[i] - 1] : 0;
+            counts[bwt[i]]++;
+            if (sa[i] % SA_RATE == 0) sampled[i >>> 6] |= 1L << (i & 63);
+        }
+        if (n % OCC_RATE == 0) System.arraycopy(counts, 0, occ, (n / OCC_RATE) * SIGMA, SIGMA);  // For the row n
+        for(int w=0, k=0; w<words; w++) {
+            rank[w + 1] = rank[w] + Long.bitCount(sampled[w]);
+            for(long bits = sampled[w]; bits != 0; bits &= bits - 1)
+                samples[k++] = sa[(w << 6) + Long.numberOfTrailingZeros(bits)];
+        }
+        return new FMIndex(n, counts, ByteBuffer.wrap(bwt), IntBuffer.wrap(occ), LongBuffer.wrap(sampled), IntBuffer.wrap(rank), IntBuffer.wrap(samples));
+    }
+
+    // Length of the indexed sequence.
+    public int length() {
+        return n - 1;
+    }
+
+    // Occurrences of symbol s in the rows before row.
+    private int occ(int s, int row) {
+        int block = row / OCC_RATE, ret = occ.get(block * SIGMA + s);
+        for(int i=block * OCC_RATE; i<row; i++)
+            if (bwt.get(i) == s) ret++;
+        return ret;
+    }
+
+    // Rows [from, to) of the suffixes that start with pattern (empty if to <= from).
+    private int[] range(CharSequence pattern) {
+        int from = 0, to = n;
+        for(int i=pattern.length()-1; i>=0 && from<to; i--) {
+            int s = code(pattern.charAt(i));
+            from = c[s] + occ(s, from);
+            to = c[s] + occ(s, to);
+        }
+        return new int[]{from, to};
+    }
+
+    public int count(CharSequence pattern) {
+        int[] r = range(pattern);
+        return Math.max(0, r[1] - r[0]);
+    }
+
+    // Positions of the occurrences of pattern, in increasing order.
+    public int[] locate(CharSequence pattern) {
+        int[] r = range(pattern);
+        if (r[1] <= r[0]) return new int[0];
+        int[] ret = new int[r[1] - r[0]];
+        for(int row=r[0]; row<r[1]; row++) {
+            int i = row, steps = 0;
+            while ((sampled.get(i >>> 6) & (1L << (i & 63))) == 0) {  // Back through the text up to a sampled position
+                int s = bwt.get(i);
+                i = c[s] + occ(s, i);
+                steps++;
+            }
+            ret[row - r[0]] = samples.get(rank.get(i >>> 6) + Long.bitCount(sampled.get(i >>> 6) & ((1L << (i & 63)) - 1))) + steps;
+        }
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    // Positions of the occurrences of pattern in text (the indexed sequence), case sensitive and without taking
+    // other characters as N, as PackedSequence.indexOf finds them.
+    public int[] locate(CharSequence pattern, PackedSequence text) {
+        int[] ret = locate(pattern);
+        int m = pattern.length(), found = 0;
+        boolean acgt = true;
+        for(int i=0; i<m && acgt; i++)
+            acgt = "ACGT".indexOf(pattern.charAt(i)) >= 0;
+        for(int pos: ret)
+            if (pos + m <= text.length() && (acgt && text.isPlain(pos, pos + m) || text.regionMatches(pos, pattern)))
+                ret[found++] = pos;
+        return (found == ret.length)? ret : Arrays.copyOf(ret, found);
+    }
+
+    /*
+    Binary file (little endian): MAGIC, n and the counts of the symbols (ints), then the transform (padded to a
+    multiple of 8 bytes), the occurrences, the sampled rows, their ranks and the samples.
+    */
+    public void write(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(8 + 4 * SIGMA).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(n);
+            for(int s=0; s<SIGMA; s++) header.putInt(c[s + 1] - c[s]);
+            header.flip();
+            write(out, header);
+            ByteBuffer b = bwt.duplicate();
+            b.clear();
+            write(out, b);
+            write(out, ByteBuffer.allocate((8 - n % 8) % 8));
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            write(out, buffer, occ);
+            for(int i=0; i<sampled.limit(); i++) put(out, buffer).putLong(sampled.get(i));
+            write(out, buffer, rank);
+            write(out, buffer, samples);
+            buffer.flip();
+            write(out, buffer);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Buffer with room for one more long, writing it if it is full.
+    private static ByteBuffer put(FileChannel out, ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 8) {
+            buffer.flip();
+            write(out, buffer);
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    private static void write(FileChannel out, ByteBuffer buffer, IntBuffer ints) throws IOException {
+        for(int i=0; i<ints.limit(); i++) put(out, buffer).putInt(ints.get(i));
+    }
+
+    private static void write(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) out.write(buffer);
+    }
+
+    // Index saved by write(), mapped into memory.
+    public static FMIndex map(Path file) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(8 + 4 * SIGMA).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && in.read(header) >= 0);
+            header.flip();
+            if (header.limit() < header.capacity() || header.getInt() != MAGIC) throw new IOException("Not an FM-index: "+file);
+            int n = header.getInt();
+            int[] counts = new int[SIGMA];
+            for(int s=0; s<SIGMA; s++) counts[s] = header.getInt();
+            int blocks = n / OCC_RATE + 1, words = (n + 63) >>> 6;
+            long pos = header.capacity(), bwtBytes = (n + 7L) & ~7L;
+            long[] sizes = {bwtBytes, 4L * blocks * SIGMA, 8L * words, 4L * (words + 1), 4L * ((n - 1) / SA_RATE + 1)};
+            long total = pos;
+            for(long size: sizes) total += size;
+            if (in.size() < total) throw new IOException("Truncated FM-index: "+file);
+            ByteBuffer[] sections = new ByteBuffer[sizes.length];
+            for(int i=0; i<sizes.length; i++) {
+                sections[i] = in.map(FileChannel.MapMode.READ_ONLY, pos, sizes[i]).order(ByteOrder.LITTLE_ENDIAN);
+                pos += sizes[i];
+            }
+            sections[0].limit(n);
+            return new FMIndex(n, counts, sections[0], sections[1].asIntBuffer(), sections[2].asLongBuffer(),
+                    sections[3].asIntBuffer(), sections[4].asIntBuffer());
+        }
+    }
+
+    /*
+    SA-IS: suffix array of s[0..n-1] whose last symbol is the only 0, with symbols from 0 to k-1.
+    */
+    private interface Text {
+        int get(int i);
+    }
+
+    private static void sais(Text s, int[] sa, int n, int k) {
+        long[] stype = new long[(n + 63) >>> 6];  // S or L type of each suffix
+        stype[(n - 1) >>> 6] |= 1L << ((n - 1) & 63);
+        for(int i=n-2; i>=0; i--)
+            if (s.get(i) < s.get(i + 1) || (s.get(i) == s.get(i + 1) && isS(stype, i + 1))) stype[i >>> 6] |= 1L << (i & 63);
+        int[] bucket = new int[k];
+        // Sorts the LMS substrings by induction
+        buckets(s, bucket, n, k, true);
+        Arrays.fill(sa, 0, n, -1);
+        for(int i=1; i<n; i++)
+            if (isLMS(stype, i)) sa[--bucket[s.get(i)]] = i;
+        induceL(stype, sa, s, bucket, n, k);
+        induceS(stype, sa, s, bucket, n, k);
+        int n1 = 0;
+        for(int i=0; i<n; i++)
+            if (isLMS(stype, sa[i])) sa[n1++] = sa[i];
+        // Names of the LMS substrings, in the order of the text, at the end of sa
+        Arrays.fill(sa, n1, n, -1);
+        int name = 0, prev = -1;
+        for(int i=0; i<n1; i++) {
+            int pos = sa[i];
+            boolean diff = false;
+            for(int d=0; d<n; d++) {
+                if (prev == -1 || s.get(pos + d) != s.get(prev + d) || isS(stype, pos + d) != isS(stype, prev + d)) {
+                    diff = true;
+                    break;
+                } else if (d > 0 && (isLMS(stype, pos + d) || isLMS(stype, prev + d))) break;
+            }
+            if (diff) {
+                name++;
+                prev = pos;
+            }
+            sa[n1 + pos / 2] = name - 1;
+        }
+        for(int i=n-1, j=n-1; i>=n1; i--)
+            if (sa[i] >= 0) sa[j--] = sa[i];
+        // Suffix array of the reduced string (recursively if some names are repeated)
+        int off = n - n1;
+        if (name < n1) sais(i -> sa[off + i], sa, n1, name);
+        else for(int i=0; i<n1; i++) sa[sa[off + i]] = i;
+        // Induces the suffix array of s from that of the LMS suffixes
+        buckets(s, bucket, n, k, true);
+        for(int i=1, j=0; i<n; i++)
+            if (isLMS(stype, i)) sa[off + j++] = i;
+        for(int i=0; i<n1; i++) sa[i] = sa[off + sa[i]];
+        Arrays.fill(sa, n1, n, -1);
+        for(int i=n1-1; i>=0; i--) {
+            int j = sa[i];
+            sa[i] = -1;
+            sa[--bucket[s.get(j)]] = j;
+        }
+        induceL(stype, sa, s, bucket, n, k);
+        induceS(stype, sa, s, bucket, n, k);
+    }
+
+    private static boolean isS(long[] stype, int i) {
+        return (stype[i >>> 6] & (1L << (i & 63))) != 0;
+    }
+
+    private static boolean isLMS(long[] stype, int i) {
+        return i > 0 && isS(stype, i) && !isS(stype, i - 1);
+    }
+
+    private static void buckets(Text s, int[] bucket, int n, int k, boolean end) {
+        Arrays.fill(bucket, 0);
+        for(int i=0; i<n; i++) bucket[s.get(i)]++;
+        for(int i=0, sum=0; i<k; i++) {
+            sum += bucket[i];
+            bucket[i] = end? sum : sum - bucket[i];
+        }
+    }
+
+    private static void induceL(long[] stype, int[] sa, Text s, int[] bucket, int n, int k) {
+        buckets(s, bucket, n, k, false);
+        for(int i=0; i<n; i++) {
+            int j = sa[i] - 1;
+            if (j >= 0 && !isS(stype, j)) sa[bucket[s.get(j)]++] = j;
+        }
+    }
+
+    private static void induceS(long[] stype, int[] sa, Text s, int[] bucket, int n, int k) {
+        buckets(s, bucket, n, k, true);
+        for(int i=n-1; i>=0; i--) {
+            int j = sa[i] - 1;
+            if (j >= 0 && isS(stype, j)) sa[--bucket[s.get(j)]] = j;
+        }
+    }
+}
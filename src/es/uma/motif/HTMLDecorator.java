@@ -48,12 +48,7 @@ public class HTMLDecorator {
     public static StringBuilder process(String filename, PerfectMatchArgument[] pf, PatternArgument[] p) {
     	StringBuilder sb = new StringBuilder();
         List<Sequence> seqs = Looker.loadFasta(filename);
-        Map<String, List<Decorator>> ret = new HashMap<>();
-        System.out.println("Searching...");
-        for(PerfectMatchArgument pfArg: pf) 
-            search(seqs, pfArg.aminoAcidSequence, ret, pfArg.name, pfArg.numMismatches);
-        for(PatternArgument pArg: p) 
-            search(seqs, pArg.pattern, ret, pArg.name);
+        Map<String, List<Decorator>> ret = search(seqs, pf, p);
         seqs.stream().forEach(seq -> {
             int last = seq.data.length();
             String dataDecorated = "";
@@ -80,6 +75,17 @@ public class HTMLDecorator {
         return sb;
     }
 
+    // Motives found in each sequence (by name).
+    public static Map<String, List<Decorator>> search(List<Sequence> seqs, PerfectMatchArgument[] pf, PatternArgument[] p) {
+        Map<String, List<Decorator>> ret = new HashMap<>();
+        System.out.println("Searching...");
+        for(PerfectMatchArgument pfArg: pf) 
+            search(seqs, pfArg.aminoAcidSequence, ret, pfArg.name, pfArg.numMismatches);
+        for(PatternArgument pArg: p) 
+            search(seqs, pArg.pattern, ret, pArg.name);
+        return ret;
+    }
+
     private static void search (List<Sequence> seqs, Pattern r, Map<String, List<Decorator>> ret, String classname) {
         System.out.println(classname);
         seqs.stream().forEach(seq -> {
@@ -0,0 +1,314 @@
+package es.uma.motif;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Sequence of residues packed in an array of longs: 2 bits per base for DNA (A, C, G, T) and 5 bits per
+ * amino acid for proteins (12 per long). Characters out of the alphabet (N, lower case letters...) are
+ * kept apart as runs of the same character, so the long runs of N of an assembly cost almost nothing.
+ * A chromosome of 750 Mb takes about 190 MB instead of the 1.5 GB of a StringBuilder.
+ *
+ * subSequence, reverse, complement and reverseComplement return views over the same array, without
+ * copying it. indexOf compares the packed codes of the first 32 bases of the pattern at once when
+ * searching DNA in the forward strand.
+ *
+ * write() saves it in a binary file that map() maps into memory later, so the sequence is not read nor
+ * copied into the heap and the pages are shared by all the threads (and the JVMs) that use it.
+ *
+ * @author galvez
+ */
+public final class PackedSequence implements CharSequence {
+    private static final String DNA = "ACGT";
+    private static final String PROTEIN = "ACDEFGHIKLMNPQRSTVWYBZXJUO*-";
+    private static final int MAGIC = 0x31534B50;  // "PKS1"
+
+    private final String alphabet;
+    private final int bits, perWord;
+    private final LongBuffer words;
+    private final int[] runStart, runEnd;  // Exceptions: positions from runStart[i] to runEnd[i] (excluded) are runChar[i]
+    private final char[] runChar;
+    private final int offset, length;      // Of the view in the packed array
+    private final boolean reversed, complemented;
+
+    private PackedSequence(String alphabet, int bits, LongBuffer words, int[] runStart, int[] runEnd, char[] runChar,
+                           int offset, int length, boolean reversed, boolean complemented) {
+        this.alphabet = alphabet;
+        this.bits = bits;
+        this.perWord = 64 / bits;
+        this.words = words;
+        this.runStart = runStart;
+        this.runEnd = runEnd;
+        this.runChar = runChar;
+        this.offset = offset;
+        this.length = length;
+        this.reversed = reversed;
+        this.complemented = complemented;
+    }
+
+    public static Builder dna(int capacity) {
+        return new Builder(DNA, 2, capacity);
+    }
+
+    public static Builder protein(int capacity) {
+        return new Builder(PROTEIN, 5, capacity);
+    }
+
+    // Packed as DNA if most of the residues are nucleotides, or as a protein otherwise.
+    public static PackedSequence of(CharSequence s) {
+        int acgt = 0;
+        for(int i=0; i<s.length(); i++)
+            if (DNA.indexOf(s.charAt(i)) >= 0) acgt++;
+        return ((acgt >= s.length() * 0.9)? dna(s.length()) : protein(s.length())).append(s).build();
+    }
+
+    public boolean isDna() {
+        return bits == 2;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    // Code in the alphabet of the position p of the packed array (0 in the exceptions).
+    private int code(long p) {
+        if (bits == 2) return (int)(words.get((int)(p >>> 5)) >>> ((p & 31) << 1)) & 3;
+        return (int)(words.get((int)(p / perWord)) >>> ((p % perWord) * bits)) & ((1 << bits) - 1);
+    }
+
+    private char raw(int p) {
+        if (runStart.length > 0) {
+            int r = Arrays.binarySearch(runStart, p);
+            if (r < 0) r = -r - 2;
+            if (r >= 0 && p < runEnd[r]) return runChar[r];
+        }
+        return alphabet.charAt(code(p));
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) throw new IndexOutOfBoundsException("Index: "+index);
+        char c = raw(reversed? offset + length - 1 - index : offset + index);
+        return complemented? Sequence.complementary(c) : c;
+    }
+
+    @Override
+    public PackedSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) throw new IndexOutOfBoundsException("Range: "+start+"-"+end);
+        return new PackedSequence(alphabet, bits, words, runStart, runEnd, runChar,
+                reversed? offset + length - end : offset + start, end - start, reversed, complemented);
+    }
+
+    public PackedSequence reverse() {
+        return new PackedSequence(alphabet, bits, words, runStart, runEnd, runChar, offset, length, !reversed, complemented);
+    }
+
+    public PackedSequence complement() {
+        if (!isDna()) throw new UnsupportedOperationException("Complement of a protein");
+        return new PackedSequence(alphabet, bits, words, runStart, runEnd, runChar, offset, length, reversed, !complemented);
+    }
+
+    public PackedSequence reverseComplement() {
+        return reverse().complement();
+    }
+
+    public int indexOf(CharSequence pattern) {
+        return indexOf(pattern, 0);
+    }
+
+    // First position from fromIndex where pattern is found, or -1 (as StringBuilder.indexOf).
+    public int indexOf(CharSequence pattern, int fromIndex) {
+        int m = pattern.length(), from = Math.max(fromIndex, 0);
+        if (m == 0) return Math.min(from, length);
+        if (isDna() && !reversed && !complemented && m <= length) {
+            // Codes of the first bases of the pattern in a long, compared with those of a window over the array
+            int k = Math.min(m, 32);
+            long key = 0, window = 0, mask = (k == 32)? -1L : (1L << (2 * k)) - 1;
+            for(int i=0; i<k; i++) {
+                int c = DNA.indexOf(pattern.charAt(i));
+                if (c < 0) return naiveIndexOf(pattern, from);  // Pattern with exceptions
+                key = (key << 2) | c;
+            }
+            long p = offset + (long) from, last = offset + (long) length - m;
+            for(int i=0; i<k-1 && p+i < offset + length; i++) window = (window << 2) | code(p + i);
+            long q = p + k - 1, cur = (p <= last)? words.get((int)(q >>> 5)) >>> ((q & 31) << 1) : 0;  // Next codes to enter the window
+            for(; p <= last; p++) {
+                window = ((window << 2) | (cur & 3)) & mask;
+                if (window == key && matches(pattern, (int)(p - offset))) return (int)(p - offset);
+                if ((++q & 31) == 0) cur = (q >>> 5 < words.limit())? words.get((int)(q >>> 5)) : 0;
+                else cur >>>= 2;
+            }
+            return -1;
+        }
+        return naiveIndexOf(pattern, from);
+    }
+
+    // Codes of the bases from..to (excluded) in dst: 0 to 3 for A, C, G and T and 4 for any other character.
+    void codes(int from, int to, byte[] dst) {
+        if (!isDna() || reversed || complemented) {
+            for(int i=from; i<to; i++) {
+                int c = DNA.indexOf(charAt(i));
+                dst[i - from] = (byte) ((c < 0)? 4 : c);
+            }
+            return;
+        }
+        long p = offset + (long) from, w = words.get((int)(p >>> 5)) >>> ((p & 31) << 1);
+        for(int i=0; i<to-from; i++, p++) {
+            if (i > 0 && (p & 31) == 0) w = words.get((int)(p >>> 5));
+            dst[i] = (byte) (w & 3);
+            w >>>= 2;
+        }
+        if (runStart.length > 0) {  // Exceptions over the codes
+            int a = offset + from, b = offset + to, r = Arrays.binarySearch(runStart, a);
+            for(r = Math.max((r < 0)? -r - 2 : r, 0); r < runStart.length && runStart[r] < b; r++)
+                for(int i=Math.max(runStart[r], a); i<Math.min(runEnd[r], b); i++) dst[i - a] = 4;
+        }
+    }
+
+    private int naiveIndexOf(CharSequence pattern, int from) {
+        for(int i=from; i<=length-pattern.length(); i++)
+            if (matches(pattern, i)) return i;
+        return -1;
+    }
+
+    // true if there are only A, C, G and T from..to (excluded).
+    boolean isPlain(int from, int to) {
+        if (!isDna() || reversed || complemented) return false;
+        if (runStart.length == 0 || from >= to) return true;
+        int a = offset + from, b = offset + to, r = Arrays.binarySearch(runStart, a);
+        r = (r < 0)? -r - 2 : r;  // Last run starting at a or before
+        if (r >= 0 && runEnd[r] > a) return false;
+        return r + 1 >= runStart.length || runStart[r + 1] >= b;
+    }
+
+    // true if pattern is at the position at.
+    boolean regionMatches(int at, CharSequence pattern) {
+        return at >= 0 && at + pattern.length() <= length && matches(pattern, at);
+    }
+
+    private boolean matches(CharSequence pattern, int at) {
+        for(int j=0; j<pattern.length(); j++)
+            if (charAt(at + j) != pattern.charAt(j)) return false;
+        return true;
+    }
+
+    /*
+    Binary file (little endian): MAGIC, bits, length and number of runs of exceptions (ints), the starts and ends
+    of the runs (ints) and their characters (chars), padding up to a multiple of 8 bytes and the packed longs.
+    */
+    public void write(Path file) throws IOException {
+        if (offset != 0 || reversed || complemented) throw new UnsupportedOperationException("Only sequences from their beginning and forward are saved");
+        int runs = runStart.length, header = 16 + 10 * runs, padded = (header + 7) & ~7;
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(padded, 1 << 16)).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(bits).putInt(length).putInt(runs);
+            for(int r: runStart) buffer.putInt(r);
+            for(int r: runEnd) buffer.putInt(r);
+            for(char c: runChar) buffer.putChar(c);
+            buffer.position(padded);
+            for(int w=0; w<words.limit(); w++) {
+                if (!buffer.hasRemaining()) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) out.write(buffer);
+                    buffer.clear();
+                }
+                buffer.putLong(words.get(w));
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) out.write(buffer);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Sequence saved by write(), mapped into memory.
+    public static PackedSequence map(Path file) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (in.size() > Integer.MAX_VALUE) throw new IOException("File too big: "+file);
+            ByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()).order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.limit() < 16 || buffer.getInt() != MAGIC) throw new IOException("Not a packed sequence: "+file);
+            int bits = buffer.getInt(), length = buffer.getInt(), runs = buffer.getInt();
+            int[] runStart = new int[runs], runEnd = new int[runs];
+            char[] runChar = new char[runs];
+            for(int r=0; r<runs; r++) runStart[r] = buffer.getInt();
+            for(int r=0; r<runs; r++) runEnd[r] = buffer.getInt();
+            for(int r=0; r<runs; r++) runChar[r] = buffer.getChar();
+            buffer.position((buffer.position() + 7) & ~7);
+            LongBuffer words = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            if (bits != 2 && bits != 5 || length < 0 || words.limit() < ((long) length + 64 / bits - 1) / (64 / bits))
+                throw new IOException("Corrupted packed sequence: "+file);
+            return new PackedSequence((bits == 2)? DNA : PROTEIN, bits, words, runStart, runEnd, runChar, 0, length, false, false);
+        }
+    }
+
+    @Override
+    public String toString() {
+        char[] ret = new char[length];
+        for(int i=0; i<length; i++) ret[i] = charAt(i);
+        return new String(ret);
+    }
+
+    /**
+     * Appends residues to a packed sequence.
+     */
+    public static final class Builder {
+        private final String alphabet;
+        private final int bits, perWord;
+        private final byte[] codes = new byte[128];
+        private long[] words;
+        private int length;
+        private int[] runStart = new int[16], runEnd = new int[16];
+        private char[] runChar = new char[16];
+        private int runs;
+
+        private Builder(String alphabet, int bits, int capacity) {
+            this.alphabet = alphabet;
+            this.bits = bits;
+            this.perWord = 64 / bits;
+            this.words = new long[Math.max(1, (capacity + perWord - 1) / perWord)];
+            Arrays.fill(codes, (byte) -1);
+            for(int i=0; i<alphabet.length(); i++) codes[alphabet.charAt(i)] = (byte) i;
+        }
+
+        public Builder append(char c) {
+            if (length == Integer.MAX_VALUE) throw new IllegalStateException("Sequence too long");
+            if (length / perWord == words.length) words = Arrays.copyOf(words, (int) Math.min(2L * words.length, Integer.MAX_VALUE / perWord + 1));
+            int code = (c < 128)? codes[c] : -1;
+            if (code >= 0) words[length / perWord] |= (long) code << ((length % perWord) * bits);
+            else if (runs > 0 && runEnd[runs - 1] == length && runChar[runs - 1] == c) runEnd[runs - 1]++;
+            else {
+                if (runs == runStart.length) {
+                    runStart = Arrays.copyOf(runStart, 2 * runs);
+                    runEnd = Arrays.copyOf(runEnd, 2 * runs);
+                    runChar = Arrays.copyOf(runChar, 2 * runs);
+                }
+                runStart[runs] = length;
+                runEnd[runs] = length + 1;
+                runChar[runs++] = c;
+            }
+            length++;
+            return this;
+        }
+
+        public Builder append(CharSequence s) {
+            for(int i=0; i<s.length(); i++) append(s.charAt(i));
+            return this;
+        }
+
+        public PackedSequence build() {
+            int used = Math.max(1, (length + perWord - 1) / perWord);
+            return new PackedSequence(alphabet, bits, LongBuffer.wrap((used == words.length)? words : Arrays.copyOf(words, used)),
+                    Arrays.copyOf(runStart, runs), Arrays.copyOf(runEnd, runs), Arrays.copyOf(runChar, runs),
+                    0, length, false, false);
+        }
+    }
+}
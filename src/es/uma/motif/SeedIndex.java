@@ -0,0 +1,254 @@
+package es.uma.motif;
+
+import java.util.Arrays;
+
+/**
+ * Index of the minimizers of a DNA sequence (e.g., a chromosome) to place genes on it approximately, even
+ * when they differ in some bases (as between ecotypes) and no long piece of them matches exactly.
+ *
+ * Of every W consecutive k-mers (K bases) only the one with the smallest hash, its minimizer, is kept
+ * (Roberts et al., Bioinformatics 20(18), 2004), that is, about 2/(W+1) of the positions. The positions of
+ * each minimizer are consecutive in an array of ints, found through an open addressing hash table. A gene
+ * is placed by its own minimizers: each one found gives a diagonal (position in the chromosome minus
+ * position in the gene), the band of diagonals with more seeds gives the candidate place, and an alignment
+ * restricted to that band (edit distance, with free ends in the chromosome) gives the exact place and the
+ * identity. The gene and its reverse complementary are both tried. Minimizers found more than MAX_OCC
+ * times (repeats) are not used as seeds, and a place with less than MIN_SEEDS seeds in its band or less
+ * than MIN_IDENTITY identity is not taken as the gene (a random sequence gets about 50% identity).
+ *
+ * Case is ignored in the genes; in the chromosome, as any character other than A, C, G and T, lower case
+ * letters are taken as N. Building the index needs 8 bytes per minimizer (about 1.5 bytes per base with
+ * W = 10), and it keeps 4 bytes per minimizer plus 16 per distinct one. K, W, MAX_OCC, BAND, MIN_SEEDS
+ * and MIN_IDENTITY can be changed with -Dseed.k, -Dseed.w, -Dseed.maxOcc, -Dseed.band, -Dseed.minSeeds
+ * and -Dseed.minIdentity.
+ *
+ * @author galvez
+ */
+public final class SeedIndex {
+    public static final int K = Math.min(Integer.getInteger("seed.k", 15), 31);
+    public static final int W = Integer.getInteger("seed.w", 10);
+    public static final int MAX_OCC = Integer.getInteger("seed.maxOcc", 500);
+    public static final int BAND = Integer.getInteger("seed.band", 64);
+    public static final int MIN_SEEDS = Integer.getInteger("seed.minSeeds", 3);
+    public static final double MIN_IDENTITY = Double.parseDouble(System.getProperty("seed.minIdentity", "0.8"));
+    private static final int CHUNK = 1 << 20;
+    private static final int INF = Integer.MAX_VALUE / 2;
+
+    public static class Placement {
+        public int pos;          // First base of the chromosome aligned with the gene
+        public int end;          // and the next one after the last
+        public boolean reverse;  // true if the reverse complementary of the gene is what is there
+        public int seeds;        // Minimizers of the gene found in the band
+        public double identity;  // 1 - edit distance / length of the gene
+
+        @Override
+        public String toString() {
+            return pos+"-"+end+(reverse? " (-) " : " (+) ")+String.format("%.2f", 100 * identity)+"% ("+seeds+" seeds)";
+        }
+    }
+
+    private final PackedSequence str;
+    private final int[] table;      // Rank + 1 in keys of the minimizer of each slot, or 0. Its size is a power of 2
+    private final int[] keys;       // Distinct minimizers, sorted
+    private final int[] start;      // Of the positions of each one in positions (and the end of the last one)
+    private final int[] positions;
+
+    private SeedIndex(PackedSequence str, long[] found, int size) {
+        this.str = str;
+        Arrays.sort(found, 0, size);  // By minimizer and then by position
+        positions = new int[size];
+        int distinct = 0;
+        for(int i=0; i<size; i++) {
+            if (i == 0 || (found[i] >>> 32) != (found[i-1] >>> 32)) distinct++;
+            positions[i] = (int) found[i];
+        }
+        if (distinct > 1 << 29) throw new IllegalArgumentException("Too many minimizers");
+        keys = new int[distinct];
+        start = new int[distinct + 1];
+        table = new int[Integer.highestOneBit(Math.max(2 * distinct - 1, 1)) << 1];
+        for(int i=0, r=-1; i<size; i++)
+            if (i == 0 || (found[i] >>> 32) != (found[i-1] >>> 32)) {
+                keys[++r] = (int) (found[i] >>> 32);
+                start[r] = i;
+                int s = keys[r] & (table.length - 1);
+                while (table[s] != 0) s = (s + 1) & (table.length - 1);
+                table[s] = r + 1;
+            }
+        start[distinct] = size;
+    }
+
+    public static SeedIndex build(PackedSequence str) {
+        Minimizers m = new Minimizers(str.length() / (W + 1) * 2 + 16);
+        byte[] codes = new byte[CHUNK];
+        for(int from=0; from<str.length(); from+=CHUNK) {
+            int to = Math.min(from + CHUNK, str.length());
+            str.codes(from, to, codes);
+            for(int i=0; i<to-from; i++) m.add(codes[i], from + i);
+        }
+        return new SeedIndex(str, m.found, m.size);
+    }
+
+    // Rank in keys of the minimizer, or -1.
+    private int rank(int hash) {
+        for(int s = hash & (table.length - 1); table[s] != 0; s = (s + 1) & (table.length - 1))
+            if (keys[table[s] - 1] == hash) return table[s] - 1;
+        return -1;
+    }
+
+    private static int code(char c) {
+        switch(c) {
+            case 'A': case 'a': return 0;
+            case 'C': case 'c': return 1;
+            case 'G': case 'g': return 2;
+            case 'T': case 't': return 3;
+            default : return 4;
+        }
+    }
+
+    // Best place of the gene or its reverse complementary (the one with more identity), or null if none has
+    // MIN_SEEDS seeds and MIN_IDENTITY identity.
+    public Placement locate(CharSequence gene) {
+        String forward = gene.toString().toUpperCase();
+        String[] strands = {forward, new Sequence("", forward).reverseComplementary()};
+        Placement ret = null;
+        for(int o=0; o<2; o++) {
+            Placement p = place(strands[o]);
+            if (p != null && (ret == null || p.identity > ret.identity || p.identity == ret.identity && p.seeds > ret.seeds)) {
+                p.reverse = (o == 1);
+                ret = p;
+            }
+        }
+        return ret;
+    }
+
+    private Placement place(String gene) {
+        Minimizers m = new Minimizers(16);
+        for(int i=0; i<gene.length(); i++) m.add(code(gene.charAt(i)), i);
+        long[] diagonals = new long[16];
+        int n = 0;
+        for(int s=0; s<m.size; s++) {
+            int r = rank((int) (m.found[s] >>> 32)), at = (int) m.found[s];
+            if (r < 0 || start[r + 1] - start[r] > MAX_OCC) continue;
+            for(int p=start[r]; p<start[r + 1]; p++) {
+                if (n == diagonals.length) diagonals = Arrays.copyOf(diagonals, 2 * n);
+                diagonals[n++] = (long) positions[p] - at;
+            }
+        }
+        if (n == 0) return null;
+        // Window of diagonals, no wider than BAND, with more seeds
+        Arrays.sort(diagonals, 0, n);
+        int best = 0, bestFrom = 0;
+        for(int a=0, b=0; b<n; b++) {
+            while (diagonals[b] - diagonals[a] > BAND) a++;
+            if (b - a + 1 > best) {
+                best = b - a + 1;
+                bestFrom = a;
+            }
+        }
+        if (best < MIN_SEEDS) return null;
+        Placement ret = align(gene, diagonals[bestFrom + best / 2]);
+        ret.seeds = best;
+        return (ret.identity >= MIN_IDENTITY)? ret : null;
+    }
+
+    /*
+    Edit distance between the gene and the chromosome around the diagonal, only for the cells of the band
+    (BAND bases at each side). The alignment may start and end anywhere in the chromosome. Each cell keeps
+    the position of the chromosome where its alignment starts.
+    */
+    private Placement align(String gene, long diagonal) {
+        int m = gene.length(), width = 2 * BAND + 1;
+        int lo = (int) Math.max(0, diagonal - BAND), hi = (int) Math.min(str.length(), Math.max(lo, diagonal + m + BAND));
+        int d = (int) (diagonal - lo), tl = hi - lo;
+        byte[] t = new byte[tl];
+        str.codes(lo, hi, t);
+        int[] cost = new int[width], from = new int[width], prevCost = new int[width], prevFrom = new int[width];
+        // Row i has the columns j = i + d - BAND + k, for k from 0 to width - 1
+        for(int k=0; k<width; k++) {
+            int j = d - BAND + k;
+            cost[k] = (j >= 0 && j <= tl)? 0 : INF;
+            from[k] = j;
+        }
+        for(int i=1; i<=m; i++) {
+            int[] swap = prevCost; prevCost = cost; cost = swap;
+            swap = prevFrom; prevFrom = from; from = swap;
+            int c = code(gene.charAt(i - 1));
+            for(int k=0; k<width; k++) {
+                int j = i + d - BAND + k;
+                if (j < 0 || j > tl) {
+                    cost[k] = INF;
+                    continue;
+                }
+                int best = INF, f = 0;
+                if (j > 0) {  // (i-1, j-1)
+                    best = prevCost[k] + ((c < 4 && c == t[j - 1])? 0 : 1);
+                    f = prevFrom[k];
+                }
+                if (k + 1 < width && prevCost[k + 1] + 1 < best) {  // (i-1, j)
+                    best = prevCost[k + 1] + 1;
+                    f = prevFrom[k + 1];
+                }
+                if (k > 0 && cost[k - 1] + 1 < best) {  // (i, j-1)
+                    best = cost[k - 1] + 1;
+                    f = from[k - 1];
+                }
+                cost[k] = Math.min(best, INF);
+                from[k] = f;
+            }
+        }
+        Placement ret = new Placement();
+        int best = INF;
+        for(int k=0; k<width; k++)
+            if (cost[k] < best) {
+                best = cost[k];
+                ret.pos = lo + from[k];
+                ret.end = lo + m + d - BAND + k;
+            }
+        ret.identity = (best >= m)? 0 : 1 - (double) best / m;
+        return ret;
+    }
+
+    /**
+     * Minimizers of a sequence given base by base, as longs with the hash of the minimizer in the high
+     * int and its position in the low one.
+     */
+    private static final class Minimizers {
+        private final long kmask = (1L << (2 * K)) - 1;
+        private final int[] hashes = new int[W], at = new int[W];  // Of the last W k-mers
+        long[] found;
+        int size;
+        private long kmer;
+        private int valid;       // Bases in a row in ACGT
+        private int kmers;       // k-mers in a row
+        private int min = -1;    // Index in hashes of the current minimizer
+        private int last = -1;   // Position of the last minimizer added
+
+        Minimizers(int capacity) {
+            found = new long[capacity];
+        }
+
+        void add(int code, int pos) {
+            if (code > 3) {
+                valid = kmers = 0;
+                min = -1;
+                return;
+            }
+            kmer = ((kmer << 2) | code) & kmask;
+            if (++valid < K) return;
+            int slot = kmers % W, first = pos - K + 1;
+            hashes[slot] = (int) ((kmer * 0x9E3779B97F4A7C15L) >>> 32);
+            at[slot] = first;
+            kmers++;
+            if (min >= 0 && at[min] <= first - W) min = -1;  // Out of the window
+            if (min < 0) {
+                for(int s=0; s<Math.min(kmers, W); s++)
+                    if (min < 0 || hashes[s] < hashes[min] || hashes[s] == hashes[min] && at[s] < at[min]) min = s;
+            } else if (hashes[slot] < hashes[min]) min = slot;
+            if (kmers >= W && at[min] != last) {
+                if (size == found.length) found = Arrays.copyOf(found, 2 * size);
+                found[size++] = (long) hashes[min] << 32 | at[min];
+                last = at[min];
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package es.uma.motif;
 
 import java.util.HashMap;
+import java.util.List;
 
 /**
  *
@@ -32,6 +33,11 @@ public class Sequence {
         data = "";
     }
     
+    // Residues packed in 2 bits (DNA) or 5 bits (protein), see PackedSequence.
+    public PackedSequence pack() {
+        return PackedSequence.of(data);
+    }
+
     public String reverseComplementary(){
         StringBuilder str = new StringBuilder(10_000);
         for (int i=0; i < data.length(); i++){
@@ -70,7 +76,7 @@ public class Sequence {
         return name.contains("TRAES"+nameChromosome) || name.contains("Traes_"+nameChromosome);
     }
 
-    void locateIn(StringBuilder str) {
+    void locateIn(PackedSequence str) {
          System.out.println("Trying: " + name);
         int pos = -1;
         String dataComplementary = reverseComplementary();
@@ -89,8 +95,9 @@ public class Sequence {
         }
     }
         
-    public void locateAnyManyTimes(StringBuilder str, HashMap<String, ResultPair> hm){
+    public void locateAnyManyTimes(PackedSequence str, HashMap<String, ResultPair> hm){
         int pos;
+        String reverseComplementary = reverseComplementary(), reverse = reverse(), complementary = complementary();
         // System.out.println("Trying: " + name);
         pos = -1;
         while((pos = str.indexOf(data, pos+1)) != -1) { 
@@ -98,17 +105,17 @@ public class Sequence {
             registerPos(pos, hm);
         }
         pos = -1;
-        while ((pos = str.indexOf(reverseComplementary(), pos+1)) != -1) {
+        while ((pos = str.indexOf(reverseComplementary, pos+1)) != -1) {
             System.out.println("("+name+") Forward Reverse Complementary found "+pos);
             registerPos(pos, hm);
         }
         pos = -1;
-        while ((pos = str.indexOf(reverse(), pos+1)) != -1)  {
+        while ((pos = str.indexOf(reverse, pos+1)) != -1)  {
             System.out.println("("+name+") Forward Reverse found "+pos);
             registerPos(pos, hm);
         }
         pos = -1;
-        while ((pos = str.indexOf(complementary(), pos+1)) != -1) {
+        while ((pos = str.indexOf(complementary, pos+1)) != -1) {
             System.out.println("("+name+") Forward Complementary found "+pos);
             registerPos(pos, hm);
         }
@@ -116,7 +123,68 @@ public class Sequence {
         // System.out.println(name + "\t" + rp.pos+"\t"+rp.qty);
     }
 
-    private void registerPos(int pos, HashMap<String, ResultPair> hm) {
+    // locateAnyManyTimes of all the sequences with a single pass over the chromosome (see BatchLocator).
+    public static void locateAnyManyTimes(List<Sequence> seqs, PackedSequence str, HashMap<String, ResultPair> hm){
+        new BatchLocator(seqs).locateAnyManyTimes(str, hm);
+    }
+
+    // Best place of the sequence (or its reverse complementary) in the chromosome, even with some differences (see SeedIndex).
+    public SeedIndex.Placement locateIn(SeedIndex seeds) {
+        System.out.println("Trying: " + name);
+        SeedIndex.Placement ret = seeds.locate(data);
+        if (ret == null) {
+            System.out.println("Gene not found. "+name);
+        } else System.out.println(""+ret.pos+" .... "+name+" "+ret);
+        return ret;
+    }
+
+    // Same as locateIn(PackedSequence) with the FM-index of the chromosome str.
+    void locateIn(FMIndex index, PackedSequence str) {
+         System.out.println("Trying: " + name);
+        int pos = -1;
+        String dataComplementary = reverseComplementary();
+        for(int i=0; i < data.length() - 60; i+=60){
+            int[] found = index.locate(data.substring(i, i+59), str);
+            if (found.length == 0) found = index.locate(dataComplementary.substring(i, i+59), str);
+            if (found.length > 0) {
+                pos = found[0];
+                System.out.println(""+(pos+i)+" .... "+name);
+                break;
+            } else System.out.print(".");
+        }
+        if (pos == -1) {
+            System.out.println("Gene not found. "+name);
+        } else if (after(index.locate(data, str), pos) || after(index.locate(dataComplementary, str), pos)) {
+            System.out.println("But something is wrong.");
+        }
+    }
+
+    private static boolean after(int[] positions, int pos) {
+        return positions.length > 0 && positions[positions.length - 1] > pos;
+    }
+
+    // Same as locateAnyManyTimes(PackedSequence, hm) with the FM-index of the chromosome str: each orientation
+    // costs the length of the gene plus its occurrences, instead of a scan of the chromosome.
+    public void locateAnyManyTimes(FMIndex index, PackedSequence str, HashMap<String, ResultPair> hm){
+        for(int pos: index.locate(data, str)) {
+            System.out.println("("+name+") Forward found "+pos); 
+            registerPos(pos, hm);
+        }
+        for(int pos: index.locate(reverseComplementary(), str)) {
+            System.out.println("("+name+") Forward Reverse Complementary found "+pos);
+            registerPos(pos, hm);
+        }
+        for(int pos: index.locate(reverse(), str)) {
+            System.out.println("("+name+") Forward Reverse found "+pos);
+            registerPos(pos, hm);
+        }
+        for(int pos: index.locate(complementary(), str)) {
+            System.out.println("("+name+") Forward Complementary found "+pos);
+            registerPos(pos, hm);
+        }
+    }
+
+    void registerPos(int pos, HashMap<String, ResultPair> hm) {
     	ResultPair rp = hm.get(name);
         rp.qty++;
         rp.pos = (rp.qty == 1)? pos : 0 ;
@@ -0,0 +1,38 @@
+package nw;
+
+/**
+ * Result of NWAlign.align: the score of NWAlign.NeedlemanWunsch together with the alignment itself.
+ *
+ * The CIGAR string describes the alignment from the point of view of the second sequence (the subject,
+ * as the reference): M is a pair of aligned residues (identical or not), I is a residue of the first
+ * sequence against a gap and D is a residue of the second sequence against a gap. E.g., "3M2I5M".
+ *
+ * @author galvez
+ */
+public class AlignmentResult {
+    public int score;
+    public int identical;      // Aligned pairs with the same residue (L_id in NWAlign.NeedlemanWunsch)
+    public int alignedLength;  // Aligned pairs, identical or not (L_ali in NWAlign.NeedlemanWunsch)
+    public int length1;
+    public int length2;
+    public String cigar;
+    public String aligned1;    // Sequences with '-' in the gaps. null unless requested to NWAlign.align
+    public String aligned2;
+
+    // Identical residues over the length of the second sequence, as in NWAlign.NeedlemanWunsch.
+    public double identity() {
+        return (length2 == 0)? 0.0 : identical / (double) length2;
+    }
+
+    // Residues of the second sequence aligned with a residue of the first one.
+    public double coverage() {
+        return (length2 == 0)? 0.0 : alignedLength / (double) length2;
+    }
+
+    @Override
+    public String toString() {
+        String ret = "Score=" + score + " identity=" + identical + "/" + length2 + " aligned=" + alignedLength + " " + cigar;
+        if (aligned1 != null) ret += "\n" + aligned1 + "\n" + aligned2;
+        return ret;
+    }
+}
@@ -0,0 +1,67 @@
+package nw;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Application-wide pool of threads for alignments.
+ *
+ * Instead of creating a pool for each gene that is compared against a variety, every alignment
+ * is submitted here. The pool is created on first use with as many threads as available processors
+ * (-Dnw.threads=N changes it) and a bounded queue (-Dnw.queue=N, 64 tasks per thread by default).
+ * When the queue is full, the thread that submits runs the alignment itself, so a long loop of
+ * submissions cannot exhaust the memory and it never blocks.
+ * Threads are daemon, but shutdown() should be called at the end of the program to finish
+ * pending work cleanly. The pool is created again if it is used after a shutdown.
+ *
+ * @author galvez
+ */
+public final class AlignmentScheduler {
+    public static final int THREADS = Integer.getInteger("nw.threads", Runtime.getRuntime().availableProcessors());
+    public static final int QUEUE = Integer.getInteger("nw.queue", 64 * THREADS);
+
+    private static ThreadPoolExecutor executor;
+
+    private AlignmentScheduler() {}
+
+    public static synchronized ExecutorService executor() {
+        if (executor == null || executor.isShutdown()) {
+            AtomicInteger counter = new AtomicInteger();
+            executor = new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, QUEUE)),
+                    r -> {
+                        Thread t = new Thread(r, "nw-align-" + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    },
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return executor;
+    }
+
+    public static <T> Future<T> submit(Callable<T> task) {
+        return executor().submit(task);
+    }
+
+    // Waits for the submitted alignments to finish and stops the threads.
+    public static void shutdown() {
+        ThreadPoolExecutor e;
+        synchronized (AlignmentScheduler.class) {
+            e = executor;
+            executor = null;
+        }
+        if (e == null) return;
+        e.shutdown();
+        try {
+            if (!e.awaitTermination(1, TimeUnit.MINUTES)) e.shutdownNow();
+        } catch (InterruptedException x) {
+            e.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
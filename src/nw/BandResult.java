@@ -0,0 +1,18 @@
+package nw;
+
+/**
+ * Result of NWAlign.NeedlemanWunschBanded.
+ *
+ * @author galvez
+ */
+public class BandResult {
+    public int score;      // Best score found inside the band
+    public boolean exact;  // true if it has been proved that no alignment outside the band is better
+    public int band;       // Width of the last band used (Integer.MAX_VALUE if the whole matrix was computed)
+    public int upperBound; // Upper bound of any alignment that leaves the band (only meaningful when not exact)
+
+    @Override
+    public String toString() {
+        return score+(exact? "" : " (band "+band+", upper bound "+upperBound+")");
+    }
+}
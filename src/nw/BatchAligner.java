@@ -0,0 +1,202 @@
+package nw;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntSupplier;
+import java.util.stream.IntStream;
+
+/**
+ * All-vs-all score-only Needleman-Wunsch of two lists of sequences (see BatchScores).
+ *
+ * The matrix of scores is computed in a ForkJoinPool (as many threads as AlignmentScheduler.THREADS)
+ * by recursively splitting it into tiles, so idle threads steal the pending halves of the busy ones.
+ * Tiles are not split by number of sequences but by cost, i.e., the sum of the products of lengths
+ * of their pairs, because a few long sequences may take more time than many short ones.
+ * When a list is aligned against itself with a symmetric matrix, only the upper triangle is computed
+ * (the recurrence gives the same score when both sequences are swapped) and the diagonal gives
+ * the self-scores (see NWAlign.selfScore).
+ * Each sequence is encoded once and the query profile of each row is built only once.
+ * Scores already in ScoreCache.shared() are not computed again.
+ *
+ * @author galvez
+ */
+public final class BatchAligner {
+    private static final long MIN_TILE_COST = 1 << 20; // Cells of the dynamic program below which a tile is not split
+    private static ForkJoinPool pool;
+
+    private final QueryProfile[] rowProfiles;
+    private final String[] rows;
+    private final byte[][] colCodes;
+    private final long[] rowCost;  // rowCost[i] is the sum of (length+1) of rows 0..i-1
+    private final long[] colCost;
+    private final int gap_open, gap_extn;
+    private final ScoringMatrix matrix;
+    private final int[][] scores;
+    private final long threshold;
+    private final ScoreCache cache = ScoreCache.shared();
+    private final long[] rowHash, colHash;
+
+    private BatchAligner(ScoringMatrix matrix, List<String> rows, List<String> cols, int gap_open, int gap_extn) {
+        this.matrix = matrix;
+        this.rows = rows.toArray(new String[0]);
+        this.rowProfiles = new QueryProfile[rows.size()];
+        this.colCodes = new byte[cols.size()][];
+        for(int j=0; j<colCodes.length; j++)
+            colCodes[j] = matrix.encode(cols.get(j));
+        this.rowCost = prefixCost(rows);
+        this.colCost = prefixCost(cols);
+        this.gap_open = gap_open;
+        this.gap_extn = gap_extn;
+        this.scores = new int[rows.size()][cols.size()];
+        long total = rowCost[rows.size()] * colCost[cols.size()];
+        this.threshold = Math.max(MIN_TILE_COST, total / (16L * AlignmentScheduler.THREADS));
+        this.rowHash = hashes(rows);
+        this.colHash = (rows == cols)? rowHash : hashes(cols);
+    }
+
+    private long[] hashes(List<String> seqs) {
+        if (cache == null) return null;
+        long[] ret = new long[seqs.size()];
+        for(int i=0; i<ret.length; i++)
+            ret[i] = ScoreCache.hash(seqs.get(i));
+        return ret;
+    }
+
+    // Scores of every sequence of rows against every sequence of cols.
+    public static BatchScores allVsAll(ScoringMatrix matrix, List<String> rows, List<String> cols, int gap_open, int gap_extn) {
+        if (rows == cols) return allVsAll(matrix, rows, gap_open, gap_extn);
+        BatchAligner batch = new BatchAligner(matrix, rows, cols, gap_open, gap_extn);
+        BatchScores ret = new BatchScores();
+        ret.scores = batch.scores;
+        ret.rowSelf = new int[rows.size()];
+        ret.colSelf = new int[cols.size()];
+        pool().invoke(batch.new Tile(0, rows.size(), 0, cols.size(), false));
+        pool().submit(() -> IntStream.range(0, rows.size()).parallel().forEach(i ->
+            ret.rowSelf[i] = NWAlign.selfScore(matrix, rows.get(i), gap_open, gap_extn))).join();
+        pool().submit(() -> IntStream.range(0, cols.size()).parallel().forEach(j ->
+            ret.colSelf[j] = NWAlign.selfScore(matrix, cols.get(j), gap_open, gap_extn))).join();
+        return ret;
+    }
+
+    // Scores of every sequence of seqs against each other. scores[i][i] is the self-score of seqs[i].
+    public static BatchScores allVsAll(ScoringMatrix matrix, List<String> seqs, int gap_open, int gap_extn) {
+        BatchAligner batch = new BatchAligner(matrix, seqs, seqs, gap_open, gap_extn);
+        BatchScores ret = new BatchScores();
+        ret.scores = batch.scores;
+        if (matrix.isSymmetric()) {
+            pool().invoke(batch.new Triangle(0, seqs.size()));
+        } else {
+            pool().invoke(batch.new Tile(0, seqs.size(), 0, seqs.size(), false));
+        }
+        ret.rowSelf = ret.colSelf = new int[seqs.size()];
+        for(int i=0; i<seqs.size(); i++)
+            ret.rowSelf[i] = ret.scores[i][i];
+        return ret;
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) pool = new ForkJoinPool(AlignmentScheduler.THREADS);
+        return pool;
+    }
+
+    private static long[] prefixCost(List<String> seqs) {
+        long[] ret = new long[seqs.size()+1];
+        for(int i=0; i<seqs.size(); i++)
+            ret[i+1] = ret[i] + seqs.get(i).length() + 1;
+        return ret;
+    }
+
+    // Index between from and to (both excluded) that splits the cost of the range in halves.
+    private static int half(long[] cost, int from, int to) {
+        long target = (cost[from] + cost[to]) / 2;
+        int lo = from+1, hi = to-1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cost[mid] < target) lo = mid+1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // Profiles are built the first time a row is used. Two threads may build the same profile,
+    // but QueryProfile is immutable, so any of them can be kept.
+    private QueryProfile profile(int i) {
+        QueryProfile ret = rowProfiles[i];
+        if (ret == null) rowProfiles[i] = ret = new QueryProfile(matrix, rows[i]);
+        return ret;
+    }
+
+    private int score(int i, int j) {
+        return cached(rowHash, i, colHash, j, () -> NWAlign.NeedlemanWunschScore(profile(i), colCodes[j], gap_open, gap_extn));
+    }
+
+    // Score of sequence a of hashA against sequence b of hashB from the cache, or computed (and cached) by align.
+    private int cached(long[] hashA, int a, long[] hashB, int b, IntSupplier align) {
+        if (cache == null) return align.getAsInt();
+        int ret = cache.get(matrix, hashA[a], hashB[b], gap_open, gap_extn);
+        if (ret == ScoreCache.MISSING) {
+            ret = align.getAsInt();
+            cache.put(matrix, hashA[a], hashB[b], gap_open, gap_extn, ret);
+        }
+        return ret;
+    }
+
+    // Rows [r0, r1) against columns [c0, c1). If mirror, scores are also copied to the lower triangle.
+    private class Tile extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final int r0, r1, c0, c1;
+        final boolean mirror;
+
+        Tile(int r0, int r1, int c0, int c1, boolean mirror) {
+            this.r0 = r0; this.r1 = r1; this.c0 = c0; this.c1 = c1;
+            this.mirror = mirror;
+        }
+
+        @Override
+        protected void compute() {
+            if (r0 >= r1 || c0 >= c1) return;
+            long rows = rowCost[r1] - rowCost[r0], cols = colCost[c1] - colCost[c0];
+            if (rows * cols <= threshold || (r1-r0 == 1 && c1-c0 == 1)) {
+                for(int i=r0; i<r1; i++)
+                    for(int j=c0; j<c1; j++)
+                        scores[i][j] = score(i, j);
+                if (mirror)
+                    for(int i=r0; i<r1; i++)
+                        for(int j=c0; j<c1; j++)
+                            scores[j][i] = scores[i][j];
+            } else if ((rows >= cols && r1-r0 > 1) || c1-c0 == 1) {
+                int mid = half(rowCost, r0, r1);
+                invokeAll(new Tile(r0, mid, c0, c1, mirror), new Tile(mid, r1, c0, c1, mirror));
+            } else {
+                int mid = half(colCost, c0, c1);
+                invokeAll(new Tile(r0, r1, c0, mid, mirror), new Tile(r0, r1, mid, c1, mirror));
+            }
+        }
+    }
+
+    // Pairs i <= j of [from, to) when rows and columns are the same list.
+    private class Triangle extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final int from, to;
+
+        Triangle(int from, int to) {
+            this.from = from; this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            long cost = rowCost[to] - rowCost[from];
+            if (to - from == 1 || cost * cost / 2 <= threshold) {
+                for(int i=from; i<to; i++) {
+                    scores[i][i] = NWAlign.selfScore(matrix, rows[i], gap_open, gap_extn);
+                    for(int j=i+1; j<to; j++)
+                        scores[i][j] = scores[j][i] = score(i, j);
+                }
+            } else {
+                int mid = half(rowCost, from, to);
+                invokeAll(new Triangle(from, mid), new Triangle(mid, to), new Tile(from, mid, mid, to, true));
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package nw;
+
+/**
+ * Result of BatchAligner: scores[i][j] is the score of rows[i] (query) against cols[j] (subject),
+ * and rowSelf[i] and colSelf[j] are the scores of each sequence against itself, i.e., the highest
+ * score it can reach (the optimalScore used in the similarity tests of FillColors).
+ * In the symmetric case (a list against itself) rowSelf and colSelf are the same array.
+ *
+ * @author galvez
+ */
+public class BatchScores {
+    public int[][] scores;
+    public int[] rowSelf;
+    public int[] colSelf;
+
+    // Index of the first column with the highest score of row i (-1 if there are no columns).
+    public int best(int i) {
+        int ret = -1;
+        for(int j=0; j<scores[i].length; j++)
+            if (ret == -1 || scores[i][j] > scores[i][ret]) ret = j;
+        return ret;
+    }
+}
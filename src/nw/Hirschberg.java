@@ -0,0 +1,244 @@
+package nw;
+
+/**
+ * Alignment (not only the score) of the standard Needleman-Wunsch dynamic program of NWAlign in linear
+ * memory, following the divide and conquer of Hirschberg (CACM 18(6), 1975) as extended to affine gaps
+ * by Myers and Miller (CABIOS 4(1), 1988).
+ *
+ * The matrix is never stored. A forward pass over the columns (the same recurrence of scoreByColumns)
+ * also carries, for every cell, the row at which its best path left the middle column of the subproblem
+ * and how: by a diagonal step, by a gap opened or extended in the first sequence, or along the row 0.
+ * Then both halves are solved recursively; the right one starts at the cell where the path entered it,
+ * knowing whether it is inside a gap. Thus, the special boundaries of NWAlign.NeedlemanWunsch (val(0,j)
+ * and val(i,0) are also the unaccepted gaps preH(0,j) and preV(i,0)) are kept exactly and the score of
+ * the alignment is the one of NeedlemanWunschScore. Small subproblems are solved with the full matrix
+ * and a traceback by values.
+ *
+ * Operations are kept in a byte array, and the CIGAR and aligned strings are built at the end.
+ *
+ * @author galvez
+ */
+final class Hirschberg {
+    static final byte MATCH = 0, GAP1 = 1, GAP2 = 2;  // Aligned pair, residue of seq1 against gap, residue of seq2 against gap
+    private static final int GLOBAL = 0, ROW0 = 1, VAL = 2, SV = 3;     // How a subproblem starts
+    private static final int DIAG = 0, VOPEN = 1, VEXT = 2, CHAIN = 3;  // How the path leaves the middle column
+    private static final int NEG = Integer.MIN_VALUE / 4;
+    private static final int BASE_CELLS = 1 << 14;  // Subproblems solved with the full matrix
+
+    private final int[][] profile;
+    private final byte[] subject;
+    private final int go, ge, gmax;
+    private final int baseCells;
+    private final int[] val, preV, crossVal, crossV;
+    private byte[] ops;
+    private int length;
+
+    Hirschberg(QueryProfile query, byte[] subject, int gap_open, int gap_extn, int baseCells) {
+        this.profile = query.profile;
+        this.subject = subject;
+        this.go = gap_open;
+        this.ge = gap_extn;
+        this.gmax = Math.max(gap_open, gap_extn);
+        this.baseCells = baseCells;
+        int n = query.length();
+        this.val = new int[n+1];
+        this.preV = new int[n+1];
+        this.crossVal = new int[n+1];
+        this.crossV = new int[n+1];
+        this.ops = new byte[n + subject.length];
+    }
+
+    static AlignmentResult align(QueryProfile query, String subject, int gap_open, int gap_extn, boolean alignedStrings) {
+        return align(query, subject, gap_open, gap_extn, alignedStrings, BASE_CELLS);
+    }
+
+    static AlignmentResult align(QueryProfile query, String subject, int gap_open, int gap_extn, boolean alignedStrings, int baseCells) {
+        byte[] codes = query.matrix.encode(subject);
+        Hirschberg h = new Hirschberg(query, codes, gap_open, gap_extn, baseCells);
+        AlignmentResult ret = new AlignmentResult();
+        ret.score = h.solve(0, 0, GLOBAL, query.length(), codes.length, false);
+        ret.length1 = query.length();
+        ret.length2 = codes.length;
+        StringBuilder cigar = new StringBuilder();
+        char[] a1 = alignedStrings? new char[h.length] : null;
+        char[] a2 = alignedStrings? new char[h.length] : null;
+        int i = 0, j = 0;
+        for(int k=0; k<h.length; k++) {
+            byte op = h.ops[k];
+            if (op == MATCH) {
+                ret.alignedLength++;
+                if (query.codes[i] == codes[j]) ret.identical++;  // Order numbers, as in NeedlemanWunsch
+            }
+            if (alignedStrings) {
+                a1[k] = (op == GAP2)? '-' : query.query.charAt(i);
+                a2[k] = (op == GAP1)? '-' : subject.charAt(j);
+            }
+            if (op != GAP2) i++;
+            if (op != GAP1) j++;
+            if (k+1 == h.length || h.ops[k+1] != op) {
+                int run = 1;
+                while (k-run >= 0 && h.ops[k-run] == op) run++;
+                cigar.append(run).append(op == MATCH? 'M' : op == GAP1? 'I' : 'D');
+            }
+        }
+        ret.cigar = cigar.toString();
+        if (alignedStrings) {
+            ret.aligned1 = new String(a1);
+            ret.aligned2 = new String(a2);
+        }
+        return ret;
+    }
+
+    private static int cross(int i, int how) {
+        return (i << 2) | how;
+    }
+
+    // Path from (is,js) to (ie,je), ending in a vertical gap (preV) if endSV. Its operations are appended
+    // to ops and its score (relative to the start) is returned.
+    private int solve(int is, int js, int start, int ie, int je, boolean endSV) {
+        if (je - js <= 1 || (long)(ie-is+1)*(je-js+1) <= baseCells) return full(is, js, start, ie, je, endSV);
+        int mid = (js + je) >>> 1;
+        forward(is, js, start, ie, je, mid);
+        int ret = endSV? preV[ie] : val[ie];
+        int c = endSV? crossV[ie] : crossVal[ie];
+        int ic = c >>> 2, how = c & 3;
+        solve(is, js, start, ic, mid, how == VEXT);
+        if (how == DIAG) {
+            ops[length++] = MATCH;
+            solve(ic+1, mid+1, VAL, ie, je, endSV);
+        } else {
+            ops[length++] = GAP2;
+            solve(ic, mid+1, (how == CHAIN)? ROW0 : SV, ie, je, endSV);
+        }
+        return ret;
+    }
+
+    // First cell of a subproblem and the cells below it in its column (only reachable by gaps in the second sequence).
+    // GLOBAL is the cell (0,0) of NeedlemanWunsch, ROW0 is a cell of the row 0 (so preH is val), VAL a cell reached by
+    // a diagonal step and SV a cell reached by a gap in the first sequence (so the next one is an extension).
+    // Forward pass from (is,js) to column je. crossVal[i] and crossV[i] tell where the best path to (i,je) left column mid.
+    private void forward(int is, int js, int start, int ie, int je, int mid) {
+        boolean chain = (start == GLOBAL || start == ROW0);
+        val[is] = 0;
+        preV[is] = (start == SV)? 0 : NEG;
+        int h = chain? 0 : NEG;
+        for(int i=is+1; i<=ie; i++) {
+            if (start == GLOBAL) {
+                val[i] = go + (i-1)*ge;
+                preV[i] = val[i];
+            } else {
+                h = Math.max(val[i-1] + go, h + ge);
+                val[i] = h;
+                preV[i] = NEG;
+            }
+        }
+        for(int j=js+1; j<=je; j++) {
+            int[] score = profile[subject[j-1]];
+            boolean crossing = (j == mid+1);
+            int diag = val[is], diagCross = crossVal[is];
+            int up, upCross, preH, preHCross;
+            if (chain) {  // Row 0
+                up = (start == GLOBAL && j == 1)? go : val[is] + ge;
+                upCross = crossing? cross(is, CHAIN) : crossVal[is];
+                preH = up;
+                preHCross = upCross;
+            } else {      // Only reachable from the left
+                boolean open = val[is] + go > preV[is] + ge;
+                up = open? val[is] + go : preV[is] + ge;
+                upCross = crossing? cross(is, open? VOPEN : VEXT) : (open? crossVal[is] : crossV[is]);
+                preH = NEG;
+                preHCross = 0;
+            }
+            val[is] = preV[is] = up;
+            crossVal[is] = crossV[is] = upCross;
+            for(int i=is+1; i<=ie; i++) {
+                int D = diag + score[i-1];
+                int dCross = crossing? cross(i-1, DIAG) : diagCross;
+                boolean hOpen = up + go > preH + ge;
+                int H = hOpen? up + go : preH + ge;
+                int hCross = hOpen? upCross : preHCross;
+                boolean vOpen = val[i] + go > preV[i] + ge;
+                int V = vOpen? val[i] + go : preV[i] + ge;
+                int vCross = crossing? cross(i, vOpen? VOPEN : VEXT) : (vOpen? crossVal[i] : crossV[i]);
+                diag = val[i];
+                diagCross = crossVal[i];
+                preH = H;
+                preHCross = hCross;
+                preV[i] = V;
+                crossV[i] = vCross;
+                if (D > H && D > V) { up = D; upCross = dCross; }
+                else if (H > V) { up = H; upCross = hCross; }
+                else { up = V; upCross = vCross; }
+                val[i] = up;
+                crossVal[i] = upCross;
+            }
+        }
+    }
+
+    // Same recurrence as forward with the whole matrix of the subproblem, and traceback by values.
+    private int full(int is, int js, int start, int ie, int je, boolean endSV) {
+        boolean chain = (start == GLOBAL || start == ROW0);
+        int rows = ie-is+1, cols = je-js+1;
+        int[][] X = new int[rows][cols], H = new int[rows][cols], V = new int[rows][cols];
+        H[0][0] = chain? 0 : NEG;
+        V[0][0] = (start == SV)? 0 : NEG;
+        for(int r=1; r<rows; r++) {
+            if (start == GLOBAL) {
+                X[r][0] = V[r][0] = go + (r-1)*ge;
+                H[r][0] = NEG;
+            } else {
+                X[r][0] = H[r][0] = Math.max(X[r-1][0] + go, H[r-1][0] + ge);
+                V[r][0] = NEG;
+            }
+        }
+        for(int c=1; c<cols; c++) {
+            int[] score = profile[subject[js+c-1]];
+            if (chain) {
+                X[0][c] = H[0][c] = (start == GLOBAL && c == 1)? go : X[0][c-1] + ge;
+                V[0][c] = NEG;
+            } else {
+                X[0][c] = V[0][c] = Math.max(X[0][c-1] + go, V[0][c-1] + ge);
+                H[0][c] = NEG;
+            }
+            for(int r=1; r<rows; r++) {
+                int D = X[r-1][c-1] + score[is+r-1];
+                H[r][c] = Math.max(X[r-1][c] + go, H[r-1][c] + ge);
+                V[r][c] = Math.max(X[r][c-1] + go, V[r][c-1] + ge);
+                X[r][c] = Math.max(D, Math.max(H[r][c], V[r][c]));
+            }
+        }
+        // Traceback from the end. Operations are stored backwards and then reversed.
+        int r = rows-1, c = cols-1;
+        int ret = endSV? V[r][c] : X[r][c];
+        int[][] state = endSV? V : X;
+        int first = length;
+        while (r > 0 || c > 0) {
+            if (state == X) {
+                if (r == 0) {
+                    if (chain) { ops[length++] = GAP2; c--; }
+                    else state = V;
+                } else if (c == 0) {
+                    if (start == GLOBAL) { ops[length++] = GAP1; r--; }
+                    else state = H;
+                } else if (X[r][c] == X[r-1][c-1] + profile[subject[js+c-1]][is+r-1]) {
+                    ops[length++] = MATCH;
+                    r--; c--;
+                } else state = (X[r][c] == H[r][c])? H : V;
+            } else if (state == H) {
+                ops[length++] = GAP1;
+                if (H[r][c] == X[r-1][c] + go) state = X;
+                r--;
+                if (r == 0 && chain) state = X;   // preH of row 0 is val
+            } else {
+                if (c == 0) { state = X; continue; }  // preV of column 0 is val (GLOBAL)
+                ops[length++] = GAP2;
+                if (V[r][c] == X[r][c-1] + go) state = X;
+                c--;
+            }
+        }
+        for(int a=first, b=length-1; a<b; a++, b--) {
+            byte aux = ops[a]; ops[a] = ops[b]; ops[b] = aux;
+        }
+        return ret;
+    }
+}
@@ -33,6 +33,8 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class NWAlign {
 
@@ -43,11 +45,13 @@ public class NWAlign {
                 System.out.println(prot);
             }
 		int gap_open=-11,gap_extn=-1;
-            int[][] scores = new int[prots.length][prots.length];
+            // Each symmetric pair is aligned only once and in parallel (see BatchAligner).
+            List<String> upper = new ArrayList<>();
+            for(String prot: prots) upper.add(prot.toUpperCase());
+            int[][] scores = BatchAligner.allVsAll(ScoringMatrix.BLOSUM62, upper, gap_open, gap_extn).scores;
+            ScoreCache.closeShared();
             for(int i = 0; i < prots.length; i++){
-                scores[i][i] = 0;
                 for(int j = 0; j <= i; j++){
-                    scores[i][j] = scores[j][i] = NeedlemanWunsch(prots[i].toUpperCase(),prots[j].toUpperCase(),gap_open,gap_extn); 
                     System.out.println(""+i+", "+j+" = "+scores[i][j]);
                 }
             }
@@ -72,10 +76,8 @@ public class NWAlign {
 	
 	public static int  NeedlemanWunsch(String f1,String f2,int gap_open,int gap_extn)  
 	{
-		int[][] imut = new int[24][24];                      
-		Blosum62Matrix(imut);                              // Read Blosum scoring matrix and store it in the imut variable.
-                // Nuc42(imut);
-		String seqW = "*ARNDCQEGHILKMFPSTWYVBZX";	       // Amino acide order in the BLAST's scoring matrix (e.g.,Blosum62). 
+		int[][] imut = ScoringMatrix.BLOSUM62.imut;           // Blosum scoring matrix, built only once (see ScoringMatrix).
+                // int[][] imut = ScoringMatrix.NUC42.imut;
 		f1 = "*" + f1;                                     // Add a '*' character in the head of a sequence and this can make java code much more consistent with orginal fortran code.   
 		f2 = "*" + f2;                                     // Use 1 to represent the first position of the sequence in the original fortran code,and 1 stand for the second position in java code. Here, add a '*' character in the head of a sequence could make 1 standard for the first postion of thse sequence in java code.     
 		int[] seq1 = new int[f1.length()];                 
@@ -84,24 +86,12 @@ public class NWAlign {
 		int i,j;		                                   // For example, 1 stand for A, 2 represent R and etc.
 		for(i=1;i<f1.length();i++)
 		{
-			for(j=1;j<seqW.length();j++)
-			{
-				if(f1.charAt(i)==seqW.charAt(j))
-				{
-					seq1[i]=j;
-				}
-			}
+			seq1[i]=ScoringMatrix.BLOSUM62.code(f1.charAt(i));  // Order number in the BLAST's alphabet ("*ARNDCQEGHILKMFPSTWYVBZX")
 		}		
 		
 		for(i=1;i<f2.length();i++)
 		{
-			for(j=1;j<seqW.length();j++)
-			{
-				if(f2.charAt(i)==seqW.charAt(j))
-				{
-					seq2[i]=j;
-				}
-			}
+			seq2[i]=ScoringMatrix.BLOSUM62.code(f2.charAt(i));
 		}
 		
 	 	 int[][] score = new int[f1.length()][f2.length()];		// score[i][j] stard for the alignment score that align ith position of the first sequence to the jth position of the second sequence.
@@ -499,7 +489,300 @@ public class NWAlign {
 //	    System.out.println(); 
             return fina_score;
 	}
-	
+
+        // Score-only version of NeedlemanWunsch (standard dynamic program). Only the final score is
+        // computed, so instead of the (len1+1)x(len2+1) matrices just one column of cumulative scores
+        // (val) and of unaccepted vertical gaps (preV) is kept; the unaccepted horizontal gap is a
+        // single variable. Memory is O(min(len1,len2)). Both methods return exactly the same score:
+        // use NeedlemanWunsch when the traceback (j2i, identity) is needed.
+        public static int NeedlemanWunschScore(String f1, String f2, int gap_open, int gap_extn) {
+            return NeedlemanWunschScore(ScoringMatrix.BLOSUM62, f1, f2, gap_open, gap_extn);
+        }
+
+        public static int NeedlemanWunschScore(ScoringMatrix matrix, String f1, String f2, int gap_open, int gap_extn) {
+            // The shorter sequence is kept in the column. The recurrence is symmetric when swapping
+            // both sequences, provided that the scoring matrix is transposed too.
+            if (f1.length() <= f2.length())
+                return NeedlemanWunschScore(new QueryProfile(matrix, f1), f2, gap_open, gap_extn);
+            else
+                return NeedlemanWunschScore(new QueryProfile(matrix.transpose(), f2), f1, gap_open, gap_extn);
+        }
+
+        // Same as NeedlemanWunschScore(query, subject, gap_open, gap_extn) but the query is already
+        // encoded. This is the method to use when the same query is aligned against many subjects.
+        public static int NeedlemanWunschScore(QueryProfile query, String subject, int gap_open, int gap_extn) {
+            return Kernel.SELECTED.score(query, query.matrix.encode(subject), gap_open, gap_extn);
+        }
+
+        // Alignment of NeedlemanWunsch (score, identity, CIGAR and, if alignedStrings, both sequences with gaps)
+        // in linear memory (see Hirschberg). Its score is the one of NeedlemanWunschScore.
+        public static AlignmentResult align(QueryProfile query, String subject, int gap_open, int gap_extn, boolean alignedStrings) {
+            return Hirschberg.align(query, subject, gap_open, gap_extn, alignedStrings);
+        }
+
+        public static AlignmentResult align(String f1, String f2, int gap_open, int gap_extn) {
+            return align(new QueryProfile(ScoringMatrix.BLOSUM62, f1), f2, gap_open, gap_extn, true);
+        }
+
+        // Score of a sequence against itself, i.e., the highest score that any alignment with it can reach.
+        // It is the sum of the diagonal when no other alignment can be better, which is the case if, for
+        // any residues a and b of the sequence, 2*score(a,b) <= score(a,a)+score(b,b) (an unaligned pair
+        // is not better than the mean of both residues in the diagonal) and score(a,a) >= 2*max(gap_open, gap_extn)
+        // (a residue in the diagonal is not worse than two gap positions). Otherwise, the dynamic program is used.
+        public static int selfScore(ScoringMatrix matrix, String seq, int gap_open, int gap_extn) {
+            byte[] codes = matrix.encode(seq);
+            boolean[] present = new boolean[matrix.size()];
+            int sum = 0;
+            for(byte c: codes) {
+                present[c] = true;
+                sum += matrix.imut[c][c];
+            }
+            int gap = Math.max(gap_open, gap_extn);
+            for(int a=0; a<present.length; a++) if (present[a]) {
+                if (matrix.imut[a][a] < 2*gap) return NeedlemanWunschScore(new QueryProfile(matrix, seq), codes, gap_open, gap_extn);
+                for(int b=0; b<present.length; b++)
+                    if (present[b] && 2*matrix.imut[a][b] > matrix.imut[a][a] + matrix.imut[b][b])
+                        return NeedlemanWunschScore(new QueryProfile(matrix, seq), codes, gap_open, gap_extn);
+            }
+            return sum;
+        }
+
+        // Same as above with the subject already encoded by query.matrix (see BatchAligner).
+        static int NeedlemanWunschScore(QueryProfile query, byte[] subject, int gap_open, int gap_extn) {
+            return Kernel.SELECTED.score(query, subject, gap_open, gap_extn);
+        }
+
+        // SIMD kernel if the Vector API is available or scoreByColumns otherwise (see ScoreKernel).
+        // It is selected the first time it is used.
+        private static class Kernel {
+            static final ScoreKernel SELECTED = ScoreKernel.select();
+        }
+
+        // Banded version of NeedlemanWunschScore(query, subject, ...) for very similar sequences.
+        // Only the cells (i,j) with min(0,len2-len1)-band <= j-i <= max(0,len2-len1)+band are computed.
+        // Then, the score is compared with an upper bound of any alignment that leaves the band. If it
+        // could be better, the band is doubled up to maxBand; when the band becomes so wide that it
+        // does not pay off, the whole matrix is computed. The result tells whether the score is exact.
+        // A band below 1 starts as 1, so that it can be doubled.
+        public static BandResult NeedlemanWunschBanded(QueryProfile query, String subject, int gap_open, int gap_extn, int band, int maxBand) {
+            byte[] codes = query.matrix.encode(subject);
+            int n = query.length(), m = codes.length;
+            BandResult ret = new BandResult();
+            int[] subjectSums = null;  // Sorted only once for all the widths
+            for(int w=Math.max(band, 1); ; w=(w > Integer.MAX_VALUE/2)? Integer.MAX_VALUE : 2*w) {
+                int lo = Math.min(0, m-n) - w, hi = Math.max(0, m-n) + w;
+                int gMin = minGapsOutside(n, m, lo, hi);
+                if (gMin == -1 || (long)(hi-lo+1)*4 > n) {  // The band covers the matrix or it is worthless
+                    ret.score = Kernel.SELECTED.score(query, codes, gap_open, gap_extn);
+                    ret.exact = true;
+                    ret.band = Integer.MAX_VALUE;
+                    return ret;
+                }
+                ret.score = scoreBanded(query, codes, gap_open, gap_extn, lo, hi);
+                if (subjectSums == null) subjectSums = subjectSums(query, codes);
+                ret.upperBound = upperBound(query.bestSums(), subjectSums, n, m, gap_open, gap_extn, gMin);
+                ret.exact = ret.score >= ret.upperBound;
+                ret.band = w;
+                if (ret.exact || w >= maxBand) return ret;
+            }
+        }
+
+        // Score of the alignment if it is at least minScore, or Integer.MIN_VALUE otherwise. It is meant
+        // for similarity tests in which most pairs do not reach the threshold: the alignment is abandoned
+        // as soon as an upper bound of the final score is below minScore. Thus:
+        // 1. The bound of any alignment of both sequences is checked before the dynamic program.
+        // 2. A narrow band is computed (see NeedlemanWunschBanded); its score is exact or, otherwise,
+        //    it gives a bound of the alignments outside the band.
+        // 3. The whole dynamic program is computed, and after each column the best score that could be
+        //    reached from any cell (given the residues left in both sequences) is checked.
+        public static int scoreAtLeast(QueryProfile query, String subject, int gap_open, int gap_extn, int minScore) {
+            byte[] codes = query.matrix.encode(subject);
+            int n = query.length(), m = codes.length;
+            if (gap_open > 0 || gap_extn > 0) {  // The bounds assume that gaps are penalized
+                int score = Kernel.SELECTED.score(query, codes, gap_open, gap_extn);
+                return (score >= minScore)? score : Integer.MIN_VALUE;
+            }
+            int[] querySums = query.bestSums(), subjectSums = subjectSums(query, codes);
+            if (upperBound(querySums, subjectSums, n, m, gap_open, gap_extn, 0) < minScore) return Integer.MIN_VALUE;
+            int lo = Math.min(0, m-n) - BAND_AT_LEAST, hi = Math.max(0, m-n) + BAND_AT_LEAST;
+            int gMin = minGapsOutside(n, m, lo, hi);
+            if (gMin != -1 && (long)(hi-lo+1)*4 <= n) {
+                int score = scoreBanded(query, codes, gap_open, gap_extn, lo, hi);
+                int outside = upperBound(querySums, subjectSums, n, m, gap_open, gap_extn, gMin);
+                if (score >= outside) return (score >= minScore)? score : Integer.MIN_VALUE;
+                if (outside < minScore) return Integer.MIN_VALUE;
+            }
+            return scoreAtLeastByColumns(query, codes, gap_open, gap_extn, minScore);
+        }
+
+        private static final int BAND_AT_LEAST = 16;
+
+        // Same as scoreByColumns, but it gives up (returning Integer.MIN_VALUE) when minScore cannot be reached.
+        // From cell (i,j), the rest of the alignment has at most min(len1-i, len2-j) aligned pairs, which score
+        // at most the best residues left in each sequence (and the highest score of the matrix), and at least
+        // |(len1-i)-(len2-j)| gap positions.
+        static int scoreAtLeastByColumns(QueryProfile query, byte[] subject, int gap_open, int gap_extn, int minScore) {
+            int n = query.length(), m = subject.length;
+            int[] querySuffix = suffixBest(query.codes, query.matrix);
+            int[] subjectSuffix = new int[m+1];
+            for(int j=m-1; j>=0; j--)
+                subjectSuffix[j] = subjectSuffix[j+1] + Math.max(0, query.colMax[subject[j]]);
+            int maxDiag = Math.max(0, query.matrix.maxScore());
+            int gapStep = Math.min(0, Math.max(gap_open, gap_extn));
+            int[] val = new int[n+1];
+            int[] preV = new int[n+1];
+            for(int i=1; i<=n; i++) {
+                val[i] = (i == 1)? gap_open : val[i-1] + gap_extn;
+                preV[i] = val[i];
+            }
+            for(int j=1; j<=m; j++) {
+                int[] score = query.profile[subject[j-1]];
+                int diag = val[0];
+                val[0] = (j == 1)? gap_open : val[0] + gap_extn;
+                int up = val[0];
+                int preH = val[0];
+                int rj = m - j;
+                int best = up + Math.min(Math.min(n, rj)*maxDiag, Math.min(querySuffix[0], subjectSuffix[j])) + Math.abs(n - rj)*gapStep;
+                for(int i=1; i<=n; i++) {
+                    int D = diag + score[i-1];
+                    int H = Math.max(up + gap_open, preH + gap_extn);
+                    int V = Math.max(val[i] + gap_open, preV[i] + gap_extn);
+                    preH = H;
+                    preV[i] = V;
+                    diag = val[i];
+                    up = Math.max(D, Math.max(H, V));
+                    val[i] = up;
+                    int ri = n - i;
+                    int rest = Math.min(Math.min(ri, rj)*maxDiag, Math.min(querySuffix[i], subjectSuffix[j])) + Math.abs(ri - rj)*gapStep;
+                    if (up + rest > best) best = up + rest;
+                }
+                if (best < minScore) return Integer.MIN_VALUE;
+            }
+            return (val[n] >= minScore)? val[n] : Integer.MIN_VALUE;
+        }
+
+        // ret[i] is the highest score that residues i.. of a sequence can get (negative scores count as 0).
+        private static int[] suffixBest(byte[] codes, ScoringMatrix matrix) {
+            int[] ret = new int[codes.length+1];
+            for(int i=codes.length-1; i>=0; i--)
+                ret[i] = ret[i+1] + Math.max(0, matrix.maxScore(codes[i]));
+            return ret;
+        }
+
+        private static final int NEG = Integer.MIN_VALUE / 4; // -infinity that can be safely added to gap penalties
+
+        // Same as scoreByColumns but only for the cells (i,j) with lo <= j-i <= hi. The rest are -infinity.
+        static int scoreBanded(QueryProfile query, byte[] subject, int gap_open, int gap_extn, int lo, int hi) {
+            int n = query.length();
+            int[] val = new int[n+1];
+            int[] preV = new int[n+1];
+            for(int i=1; i<=n; i++) {
+                val[i] = (-i < lo)? NEG : (i == 1)? gap_open : val[i-1] + gap_extn;
+                preV[i] = val[i];
+            }
+            for(int j=1; j<=subject.length; j++) {
+                int[] score = query.profile[subject[j-1]];
+                int iLo = Math.max(0, j - hi), iHi = Math.min(n, j - lo);
+                int diag, up, preH;
+                if (iLo == 0) {
+                    diag = val[0];
+                    val[0] = (j == 1)? gap_open : val[0] + gap_extn;
+                    up = preH = val[0];
+                    iLo = 1;
+                } else {                  // (iLo-1, j) is outside the band
+                    diag = val[iLo-1];
+                    up = preH = NEG;
+                }
+                for(int i=iLo; i<=iHi; i++) {
+                    int D = diag + score[i-1];
+                    int H = Math.max(up + gap_open, preH + gap_extn);
+                    int V = Math.max(val[i] + gap_open, preV[i] + gap_extn);
+                    preH = H;
+                    preV[i] = V;
+                    diag = val[i];
+                    up = Math.max(D, Math.max(H, V));
+                    val[i] = up;
+                }
+            }
+            return val[n];
+        }
+
+        // Minimum number of gap positions of any alignment of len1 x len2 that leaves the band lo <= j-i <= hi,
+        // or -1 if the band covers all the matrix. Such an alignment goes from diagonal 0 to diagonal len2-len1
+        // through hi+1 or lo-1, and each gap position moves it to the next diagonal.
+        private static int minGapsOutside(int n, int m, int lo, int hi) {
+            int ret = -1;
+            if (hi+1 <= m) ret = (hi+1) + (hi+1-(m-n));
+            if (lo-1 >= -n && (ret == -1 || (1-lo) + (m-n-lo+1) < ret)) ret = (1-lo) + (m-n-lo+1);
+            return ret;
+        }
+
+        // Upper bound of the score of any alignment of the query and the subject with at least gMin gap positions.
+        // An alignment with g gap positions has d = (len1+len2-g)/2 aligned pairs, that score at most
+        // the d best residues of each sequence, and at least a gap open.
+        static int upperBound(QueryProfile query, byte[] subject, int gap_open, int gap_extn, int gMin) {
+            return upperBound(query.bestSums(), subjectSums(query, subject), query.length(), subject.length, gap_open, gap_extn, gMin);
+        }
+
+        // subjectSums(...)[k] is the highest score that k residues of the subject can get against the query.
+        private static int[] subjectSums(QueryProfile query, byte[] subject) {
+            int[] best = new int[subject.length];
+            for(int j=0; j<subject.length; j++)
+                best[j] = query.colMax[subject[j]];
+            return bestSums(best);
+        }
+
+        private static int upperBound(int[] querySums, int[] subjectSums, int n, int m, int gap_open, int gap_extn, int gMin) {
+            int ret = NEG;
+            for(int g=gMin; g<=n+m; g++) {
+                if (((n + m - g) & 1) != 0 || g < Math.abs(n-m)) continue;
+                int d = (n + m - g) / 2;
+                int gaps = (g == 0)? 0 : gap_open + (g-1)*Math.max(gap_open, gap_extn);
+                ret = Math.max(ret, Math.min(querySums[d], subjectSums[d]) + gaps);
+            }
+            return ret;
+        }
+
+        // ret[k] is the sum of the k highest values.
+        static int[] bestSums(int[] values) {
+            int[] sorted = values.clone();
+            Arrays.sort(sorted);
+            int[] ret = new int[sorted.length+1];
+            for(int k=1; k<=sorted.length; k++)
+                ret[k] = ret[k-1] + sorted[sorted.length-k];
+            return ret;
+        }
+
+        // Runs the standard Needleman-Wunsch dynamic program column by column: the query is stored
+        // in the column and the subject is iterated.
+        static int scoreByColumns(QueryProfile query, byte[] subject, int gap_open, int gap_extn) {
+            int n = query.length();
+            int[] val = new int[n+1];   // val[i] is val(i, j-1) before visiting position i of column j, and val(i, j) after.
+            int[] preV = new int[n+1];  // Same for the unaccepted vertical gap.
+            for(int i=1; i<=n; i++) {
+                val[i] = (i == 1)? gap_open : val[i-1] + gap_extn;
+                preV[i] = val[i];       // not use preV at the beginning
+            }
+            for(int j=0; j<subject.length; j++) {
+                int[] score = query.profile[subject[j]];
+                int diag = val[0];
+                val[0] = (j == 0)? gap_open : val[0] + gap_extn;
+                int up = val[0];        // val(i-1, j)
+                int preH = val[0];      // Unaccepted horizontal gap at (i-1, j)
+                for(int i=1; i<=n; i++) {
+                    int D = diag + score[i-1];
+                    int H = Math.max(up + gap_open, preH + gap_extn);
+                    int V = Math.max(val[i] + gap_open, preV[i] + gap_extn);
+                    preH = H;
+                    preV[i] = V;
+                    diag = val[i];
+                    up = Math.max(D, Math.max(H, V));
+                    val[i] = up;
+                }
+            }
+            return val[n];
+        }
+
 	public static String readFastaOrRawSequence(String file)  // read a sequence from a Fasta file or a text file.
 	{
 		String seq = "";
@@ -0,0 +1,72 @@
+package nw;
+
+/**
+ * Query sequence encoded once for a given scoring matrix, so it can be aligned against
+ * many subjects (e.g., one gene against every gene of the model variety) without repeating
+ * the setup of NWAlign.NeedlemanWunsch.
+ *
+ * profile[c][i] is the score of aligning the i-th residue of the query (0-based) with the
+ * residue whose order number is c. Thus, when iterating over the subject, all the scores
+ * of a subject residue against the query are contiguous in memory.
+ *
+ * Objects of this class are immutable and can be shared among threads.
+ *
+ * @author galvez
+ */
+public final class QueryProfile {
+    final ScoringMatrix matrix;
+    final String query;
+    final byte[] codes;
+    final int[][] profile;
+    final int[] colMax;       // colMax[c] is the highest score of residue c against any residue of the query
+    volatile int[][] striped; // Built on demand by StripedAligner
+    private volatile int[] bestSums;
+    private volatile long hash; // ScoreCache.hash(query), computed on demand (0 means not yet)
+
+    public QueryProfile(ScoringMatrix matrix, String query) {
+        this.matrix = matrix;
+        this.query = query;
+        this.codes = matrix.encode(query);
+        this.profile = new int[matrix.size()][codes.length];
+        this.colMax = new int[matrix.size()];
+        for(int c=0; c<matrix.size(); c++) {
+            int[] row = profile[c];
+            colMax[c] = Integer.MIN_VALUE;
+            for(int i=0; i<codes.length; i++) {
+                row[i] = matrix.imut[codes[i]][c];
+                colMax[c] = Math.max(colMax[c], row[i]);
+            }
+        }
+    }
+
+    // bestSums()[k] is the highest score that k residues of the query can get against any k residues
+    // (the sum of the k highest scores of the residues of the query). Used to bound alignment scores.
+    int[] bestSums() {
+        int[] ret = bestSums;
+        if (ret == null) {
+            int[] best = new int[codes.length];
+            for(int i=0; i<codes.length; i++)
+                best[i] = matrix.maxScore(codes[i]);
+            bestSums = ret = NWAlign.bestSums(best);
+        }
+        return ret;
+    }
+
+    long hash() {
+        long ret = hash;
+        if (ret == 0) hash = ret = ScoreCache.hash(query);
+        return ret;
+    }
+
+    public ScoringMatrix getMatrix() {
+        return matrix;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public int length() {
+        return codes.length;
+    }
+}
@@ -0,0 +1,236 @@
+package nw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Persistent cache of Needleman-Wunsch scores, so that the alignments of a run are not repeated
+ * in the next ones (e.g., after adding a new ecotype only its pairs are aligned).
+ *
+ * Entries are addressed by content: the 64-bit hashes of both sequences, mixed with a fingerprint
+ * of the scoring matrix and the gap penalties. With a symmetric matrix the hashes are ordered, so
+ * (a, b) and (b, a) share the entry.
+ * The file is a hash table with open addressing (linear probing) mapped into memory:
+ *   header: "NWSC" | version | capacity (power of 2) | number of entries
+ *   slot:   key1 (long) | key2 (long) | score (int) | used (int)
+ * It is doubled when it is 70% full. Since it is only a cache, a file with a wrong header is
+ * just overwritten, and a file locked by another program disables the cache in this one.
+ *
+ * The shared cache is at "nwscores.cache" in the working directory. -Dnw.cache=file changes
+ * it and -Dnw.cache= (empty) disables it.
+ *
+ * @author galvez
+ */
+public final class ScoreCache implements AutoCloseable {
+    public static final int MISSING = Integer.MIN_VALUE;
+    private static final int MAGIC = 0x4E575343; // "NWSC"
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;
+    private static final int SLOT = 24;
+    private static final int MIN_CAPACITY = 1 << 12;
+    private static final int MAX_CAPACITY = 1 << 26;  // The mapping of a buffer cannot exceed 2GB
+
+    private static ScoreCache shared;
+    private static boolean sharedOpened;
+
+    private final FileChannel channel;
+    private final FileLock lock;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int entries;
+    private boolean readOnly;  // After a failure to grow the file
+
+    public ScoreCache(String fileName) throws IOException {
+        this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock l;
+        try {
+            l = channel.tryLock();
+        } catch (OverlappingFileLockException x) { l = null; }  // Already open in this program
+        this.lock = l;
+        if (lock == null) {
+            channel.close();
+            throw new IOException("Score cache in use by another program: "+fileName);
+        }
+        boolean valid = false;
+        if (channel.size() >= HEADER) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            channel.read(header, 0);
+            header.flip();
+            int magic = header.getInt(), version = header.getInt(), cap = header.getInt(), n = header.getInt();
+            if (magic == MAGIC && version == VERSION && Integer.bitCount(cap) == 1 && cap <= MAX_CAPACITY
+                    && n >= 0 && n < cap && channel.size() == HEADER + (long)cap*SLOT) {
+                map(cap);
+                entries = n;
+                valid = true;
+            }
+        }
+        if (!valid) {
+            channel.truncate(0);
+            map(MIN_CAPACITY);
+            entries = 0;
+            writeHeader();
+        }
+    }
+
+    // Cache shared by the whole program, opened the first time it is needed. null if it is disabled
+    // or it could not be opened.
+    public static synchronized ScoreCache shared() {
+        if (!sharedOpened) {
+            sharedOpened = true;
+            String fileName = System.getProperty("nw.cache", "nwscores.cache");
+            if (!fileName.isEmpty()) try {
+                shared = new ScoreCache(fileName);
+            } catch (IOException x) { System.err.println("Score cache disabled: "+x.getMessage()); }
+        }
+        return shared;
+    }
+
+    public static synchronized void closeShared() {
+        if (shared != null) try {
+            shared.close();
+        } catch (IOException x) { x.printStackTrace(); }
+        shared = null;
+        sharedOpened = false;
+    }
+
+    // 64-bit hash of a sequence (FNV-1a with a final avalanche).
+    public static long hash(CharSequence seq) {
+        long h = 0xcbf29ce484222325L;
+        for(int i=0; i<seq.length(); i++) {
+            h ^= seq.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h ^ seq.length());
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // Score of a (query) against b (subject), or MISSING if it is not in the cache.
+    public int get(ScoringMatrix matrix, long hashA, long hashB, int gap_open, int gap_extn) {
+        long[] key = key(matrix, hashA, hashB, gap_open, gap_extn);
+        synchronized (this) {
+            int slot = find(key[0], key[1]);
+            return (buffer.getInt(slot + 20) != 0)? buffer.getInt(slot + 16) : MISSING;
+        }
+    }
+
+    public void put(ScoringMatrix matrix, long hashA, long hashB, int gap_open, int gap_extn, int score) {
+        long[] key = key(matrix, hashA, hashB, gap_open, gap_extn);
+        synchronized (this) {
+            int slot = find(key[0], key[1]);
+            if (buffer.getInt(slot + 20) == 0) {
+                if (readOnly) return;
+                if ((entries+1) * 10L > capacity * 7L && capacity < MAX_CAPACITY) {
+                    try {
+                        grow();
+                    } catch (IOException x) {
+                        System.err.println("Score cache not updated any more: "+x.getMessage());
+                        readOnly = true;
+                        return;
+                    }
+                    slot = find(key[0], key[1]);
+                } else if (entries+1 >= capacity) return;  // Full at its maximum size
+                entries++;
+                buffer.putInt(12, entries);
+            }
+            buffer.putLong(slot, key[0]);
+            buffer.putLong(slot + 8, key[1]);
+            buffer.putInt(slot + 16, score);
+            buffer.putInt(slot + 20, 1);
+        }
+    }
+
+    public int get(QueryProfile query, String subject, int gap_open, int gap_extn) {
+        return get(query.matrix, query.hash(), hash(subject), gap_open, gap_extn);
+    }
+
+    public void put(QueryProfile query, String subject, int gap_open, int gap_extn, int score) {
+        put(query.matrix, query.hash(), hash(subject), gap_open, gap_extn, score);
+    }
+
+    public synchronized int size() {
+        return entries;
+    }
+
+    private static long[] key(ScoringMatrix matrix, long hashA, long hashB, int gap_open, int gap_extn) {
+        if (matrix.isSymmetric() && hashA > hashB) {
+            long aux = hashA; hashA = hashB; hashB = aux;
+        }
+        long params = mix(matrix.fingerprint() ^ mix(((long)gap_open << 32) ^ (gap_extn & 0xFFFFFFFFL)));
+        return new long[]{ mix(hashA ^ params), hashB ^ params };
+    }
+
+    // Offset of the slot of the key, or of the empty slot where it should be inserted.
+    private int find(long key1, long key2) {
+        int i = (int)(key1 ^ (key1 >>> 32)) & (capacity - 1);
+        while (true) {
+            int slot = HEADER + i*SLOT;
+            if (buffer.getInt(slot + 20) == 0 || (buffer.getLong(slot) == key1 && buffer.getLong(slot + 8) == key2))
+                return slot;
+            i = (i + 1) & (capacity - 1);
+        }
+    }
+
+    private void map(int cap) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long)cap*SLOT);
+        capacity = cap;
+    }
+
+    private void writeHeader() {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, capacity);
+        buffer.putInt(12, entries);
+    }
+
+    // Doubles the table. The entries are kept in memory while the file is rebuilt in place: the file is
+    // extended by mapping it with the new size, without truncating it (which fails on Windows while the
+    // old mapping is alive). If it cannot be mapped, the old table is left as it was.
+    private void grow() throws IOException {
+        long[] keys = new long[2*entries];
+        int[] scores = new int[entries];
+        int n = 0;
+        for(int i=0; i<capacity; i++) {
+            int slot = HEADER + i*SLOT;
+            if (buffer.getInt(slot + 20) != 0) {
+                keys[2*n] = buffer.getLong(slot);
+                keys[2*n+1] = buffer.getLong(slot + 8);
+                scores[n++] = buffer.getInt(slot + 16);
+            }
+        }
+        int oldCapacity = capacity;
+        map(capacity * 2);
+        buffer.putInt(0, 0); // Invalid until rebuilt
+        for(int i=0; i<oldCapacity; i++)
+            buffer.putInt(HEADER + i*SLOT + 20, 0);
+        for(int k=0; k<n; k++) {
+            int slot = find(keys[2*k], keys[2*k+1]);
+            buffer.putLong(slot, keys[2*k]);
+            buffer.putLong(slot + 8, keys[2*k+1]);
+            buffer.putInt(slot + 16, scores[k]);
+            buffer.putInt(slot + 20, 1);
+        }
+        entries = n;
+        writeHeader();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        lock.release();
+        channel.close();
+    }
+}
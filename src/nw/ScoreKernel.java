@@ -0,0 +1,26 @@
+package nw;
+
+/**
+ * Implementation of the score-only standard Needleman-Wunsch dynamic program.
+ *
+ * The scalar implementation (NWAlign.scoreByColumns) is always available. The SIMD one
+ * (StripedAligner) needs the incubating Vector API, so it is only referenced by name and
+ * selected at runtime when the JVM has been started with "--add-modules jdk.incubator.vector".
+ * It can be disabled with -Dnw.simd=false.
+ *
+ * @author galvez
+ */
+interface ScoreKernel {
+    int score(QueryProfile query, byte[] subject, int gap_open, int gap_extn);
+
+    static ScoreKernel select() {
+        if (Boolean.parseBoolean(System.getProperty("nw.simd", "true"))) try {
+            ScoreKernel ret = (ScoreKernel) Class.forName("nw.StripedAligner").getDeclaredConstructor().newInstance();
+            if (ret.score(new QueryProfile(ScoringMatrix.BLOSUM62, "ARND"), ScoringMatrix.BLOSUM62.encode("ARND"), -11, -1) == 4+5+6+6)
+                return ret;
+        } catch (Exception | LinkageError x) {
+            // Vector API not available (or StripedAligner not compiled): the scalar kernel is used.
+        }
+        return NWAlign::scoreByColumns;
+    }
+}
@@ -0,0 +1,174 @@
+package nw;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable substitution matrix used by NWAlign.
+ *
+ * Residues are encoded once into their order number in the alphabet of the matrix by means of
+ * a lookup table, instead of looking for them in the alphabet string each time. Position 0 of
+ * the alphabet is reserved for any character not included in the matrix (its scores are 0), so
+ * the built-in matrices behave exactly as Blosum62Matrix and Nuc42 over the "*ARNDCQEGHILKMFPSTWYVBZX"
+ * alphabet used by NWAlign.NeedlemanWunsch.
+ *
+ * @author galvez
+ */
+public final class ScoringMatrix {
+    // Amino acide order in the BLAST's scoring matrix (e.g.,Blosum62).
+    public static final String BLAST_ALPHABET = "*ARNDCQEGHILKMFPSTWYVBZX";
+    public static final ScoringMatrix BLOSUM62 = blosum62();
+    public static final ScoringMatrix NUC42 = nuc42();
+
+    private final String name;
+    private final String alphabet;
+    final int[][] imut;
+    private final byte[] codes = new byte[128];
+    private final boolean symmetric;
+    private final int[] rowMax;   // Highest score of each residue
+    private final int max;        // Highest score of the matrix
+    private final long fingerprint;
+    private ScoringMatrix transposed;
+
+    private ScoringMatrix(String name, String alphabet, int[][] imut) {
+        this.name = name;
+        this.alphabet = alphabet;
+        this.imut = imut;
+        for(int i=1; i<alphabet.length(); i++)
+            codes[alphabet.charAt(i)] = (byte) i;
+        boolean sym = true;
+        for(int i=0; i<imut.length; i++)
+            for(int j=0; j<i; j++)
+                if (imut[i][j] != imut[j][i]) sym = false;
+        this.symmetric = sym;
+        if (sym) this.transposed = this;
+        this.rowMax = new int[imut.length];
+        int m = Integer.MIN_VALUE;
+        for(int i=0; i<imut.length; i++) {
+            rowMax[i] = Integer.MIN_VALUE;
+            for(int j=0; j<imut.length; j++)
+                rowMax[i] = Math.max(rowMax[i], imut[i][j]);
+            m = Math.max(m, rowMax[i]);
+        }
+        this.max = m;
+        StringBuilder content = new StringBuilder(alphabet);
+        for(int[] row: imut)
+            for(int score: row)
+                content.append((char) score);
+        this.fingerprint = ScoreCache.hash(content);
+    }
+
+    private static ScoringMatrix blosum62() {
+        int[][] imut = new int[24][24];
+        NWAlign.Blosum62Matrix(imut);
+        return new ScoringMatrix("BLOSUM62", BLAST_ALPHABET, imut);
+    }
+
+    private static ScoringMatrix nuc42() {
+        int[][] imut = new int[24][24];
+        NWAlign.Nuc42(imut);
+        return new ScoringMatrix("NUC4.2", BLAST_ALPHABET, imut);
+    }
+
+    /*
+     * Loads a matrix in the NCBI format (the one of the files BLOSUM62, PAM250, NUC.4.4, etc.):
+     * lines starting with '#' are comments, the first line is the list of residues and any other
+     * line begins with a residue followed by its scores against the residues of the first line.
+     * Residues are case sensitive, as in NWAlign.NeedlemanWunsch.
+     */
+    public static ScoringMatrix load(String fileName) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        String[] header = null;
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(fileName))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                if (header == null) header = line.split("\\s+");
+                else rows.add(line.split("\\s+"));
+            }
+        }
+        if (header == null) throw new IOException("Empty scoring matrix: "+fileName);
+        StringBuilder alphabet = new StringBuilder("\0");
+        for(String residue: header) {
+            if (residue.length() != 1 || residue.charAt(0) >= 128) throw new IOException("Wrong residue "+residue+" in "+fileName);
+            alphabet.append(residue);
+        }
+        int[][] imut = new int[alphabet.length()][alphabet.length()];
+        for(String[] row: rows) {
+            int i = alphabet.indexOf(row[0], 1);
+            if (i == -1 || row.length != header.length + 1) throw new IOException("Wrong row "+row[0]+" in "+fileName);
+            for(int j=1; j<row.length; j++)
+                imut[i][j] = Integer.parseInt(row[j]);
+        }
+        return new ScoringMatrix(Paths.get(fileName).getFileName().toString(), alphabet.toString(), imut);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        return alphabet.length();
+    }
+
+    public int code(char c) {
+        return (c < 128)? codes[c] : 0;
+    }
+
+    public char residue(int code) {
+        return (code == 0)? 'X' : alphabet.charAt(code);
+    }
+
+    // Order numbers of the residues of a sequence. 0 stands for residues not in the matrix.
+    public byte[] encode(CharSequence seq) {
+        byte[] ret = new byte[seq.length()];
+        for(int i=0; i<ret.length; i++)
+            ret[i] = (byte) code(seq.charAt(i));
+        return ret;
+    }
+
+    public int score(int code1, int code2) {
+        return imut[code1][code2];
+    }
+
+    // Highest score that residue code1 can get against any other residue.
+    public int maxScore(int code1) {
+        return rowMax[code1];
+    }
+
+    public int maxScore() {
+        return max;
+    }
+
+    // Hash of the alphabet and the scores (not of the name). Used as part of the keys of ScoreCache.
+    public long fingerprint() {
+        return fingerprint;
+    }
+
+    public boolean isSymmetric() {
+        return symmetric;
+    }
+
+    // Matrix whose score(a, b) is score(b, a) in this one.
+    public synchronized ScoringMatrix transpose() {
+        if (transposed == null) {
+            int[][] t = new int[imut.length][imut.length];
+            for(int i=0; i<imut.length; i++)
+                for(int j=0; j<imut.length; j++)
+                    t[j][i] = imut[i][j];
+            transposed = new ScoringMatrix(name+"^T", alphabet, t);
+            transposed.transposed = this;
+        }
+        return transposed;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,126 @@
+package nw;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD version of the score-only standard Needleman-Wunsch dynamic program (see NWAlign.scoreByColumns)
+ * using the striped query profile of Farrar (Bioinformatics 23(2), 2007).
+ *
+ * The query is split in L lanes (the number of ints in a SIMD register) and segLen = ceil(n/L)
+ * segments, so the residue i of the query is at segment i%segLen of lane i/segLen. Thus, the
+ * dependencies of the diagonal and vertical gaps are always between the same segment of
+ * consecutive columns and can be computed for all the lanes at a time.
+ * The horizontal gap (along the query) is not corrected with Farrar's "lazy F" loop: in a global
+ * alignment the gaps from the boundaries dominate a large part of the matrix and that loop would
+ * iterate through every lane in most columns. Instead, it is computed as a prefix scan (Daily, BMC
+ * Bioinformatics 17, 2016): first inside each lane and then carrying the gap from lane to lane,
+ * so each column always takes two passes over the segments.
+ *
+ * It gives the same score than NWAlign.scoreByColumns, boundary conditions included.
+ * This class needs "--add-modules jdk.incubator.vector" to compile and run. It is loaded by name
+ * from ScoreKernel.select().
+ *
+ * @author galvez
+ */
+final class StripedAligner implements ScoreKernel {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final int L = SPECIES.length();
+    private static final int NEG = Integer.MIN_VALUE / 4; // -infinity that can be safely added to gap penalties
+
+    StripedAligner() {
+        if (L < 4) throw new UnsupportedOperationException("SIMD registers too short: "+L+" ints");
+    }
+
+    // profile[c] rearranged by segments: striped[c][s*L + l] is the score of the residue l*segLen+s of the query against c.
+    private static int[][] stripedProfile(QueryProfile query) {
+        int[][] ret = query.striped;
+        if (ret == null) {
+            int n = query.length();
+            int segLen = (n + L - 1) / L;
+            ret = new int[query.profile.length][segLen * L];
+            for(int c=0; c<ret.length; c++)
+                for(int s=0; s<segLen; s++)
+                    for(int l=0; l<L; l++) {
+                        int i = l*segLen + s;
+                        ret[c][s*L + l] = (i < n)? query.profile[c][i] : 0; // Padding is after the last residue: it does not affect it
+                    }
+            query.striped = ret;
+        }
+        return ret;
+    }
+
+    // Shifts the lanes one position up (lane l gets the value of lane l-1) inserting first at lane 0.
+    // It is done through memory because slice/unslice are not intrinsified by every JDK.
+    private static IntVector shift(IntVector v, int first, int[] buffer) {
+        v.intoArray(buffer, 1);
+        buffer[0] = first;
+        return IntVector.fromArray(SPECIES, buffer, 0);
+    }
+
+    @Override
+    public int score(QueryProfile query, byte[] subject, int gap_open, int gap_extn) {
+        int n = query.length();
+        int m = subject.length;
+        // The scan needs that opening a gap is not better than extending it. Otherwise, scalar version.
+        if (n == 0 || m == 0 || gap_open > gap_extn) return NWAlign.scoreByColumns(query, subject, gap_open, gap_extn);
+        int[][] striped = stripedProfile(query);
+        int segLen = (n + L - 1) / L;
+        int[] pvH = new int[segLen * L];     // val(i, j-1)
+        int[] pvHnew = new int[segLen * L];  // val(i, j)
+        int[] pvE = new int[segLen * L];     // Unaccepted vertical gap
+        int[] pvHt = new int[segLen * L];    // max(diagonal, vertical gap) of column j
+        int[] pvF = new int[segLen * L];     // Horizontal gap of column j coming from the same lane
+        int[] buffer = new int[L + 1];
+        IntVector vGapOpen = IntVector.broadcast(SPECIES, gap_open);
+        IntVector vGapExtn = IntVector.broadcast(SPECIES, gap_extn);
+        IntVector vNeg = IntVector.broadcast(SPECIES, NEG);
+        for(int s=0; s<segLen; s++)
+            for(int l=0; l<L; l++) {
+                int i = l*segLen + s + 1;
+                int val = gap_open + (i-1)*gap_extn;  // val(i, 0)
+                pvH[s*L + l] = val;
+                pvE[s*L + l] = Math.max(val + gap_open, val + gap_extn); // preV(i, 0) is val(i, 0)
+            }
+        int top = 0; // val(0, j-1)
+        for(int j=0; j<m; j++) {
+            int[] score = striped[subject[j]];
+            int newTop = (j == 0)? gap_open : top + gap_extn; // val(0, j)
+            // Diagonal and vertical gap. As gap_open <= gap_extn, the horizontal gap is
+            // H(i) = max(Ht(i-1) + gap_open, H(i-1) + gap_extn), where Ht = max(D, V), so
+            // it is first computed inside each lane.
+            IntVector vH = shift(IntVector.fromArray(SPECIES, pvH, (segLen-1)*L), top, buffer);
+            IntVector vF = vNeg;
+            IntVector vHt = vNeg;
+            for(int s=0; s<segLen; s++) {
+                int off = s*L;
+                vF = vF.add(vGapExtn).max(vHt.add(vGapOpen));
+                vF.intoArray(pvF, off);
+                vHt = vH.add(IntVector.fromArray(SPECIES, score, off)).max(IntVector.fromArray(SPECIES, pvE, off));
+                vHt.intoArray(pvHt, off);
+                vH = IntVector.fromArray(SPECIES, pvH, off);
+            }
+            // Horizontal gap entering each lane: the one leaving the previous lane or the one entering it,
+            // extended through all its segments. preH(0, j) is val(0, j), so the gap entering the first
+            // lane is extended from it.
+            vF.add(vGapExtn).max(vHt.add(vGapOpen)).intoArray(buffer, 0);
+            int entry = Math.max(newTop + gap_open, newTop + gap_extn);
+            for(int l=0; l<L; l++) {
+                int out = buffer[l];
+                buffer[l] = entry;
+                entry = Math.max(out, entry + segLen*gap_extn);
+            }
+            IntVector vEntry = IntVector.fromArray(SPECIES, buffer, 0);
+            for(int s=0; s<segLen; s++) {
+                int off = s*L;
+                vH = IntVector.fromArray(SPECIES, pvHt, off).max(IntVector.fromArray(SPECIES, pvF, off).max(vEntry));
+                vH.intoArray(pvHnew, off);
+                IntVector.fromArray(SPECIES, pvE, off).add(vGapExtn).max(vH.add(vGapOpen)).intoArray(pvE, off);
+                vEntry = vEntry.add(vGapExtn);
+            }
+            int[] aux = pvH; pvH = pvHnew; pvHnew = aux;
+            top = newTop;
+        }
+        return pvH[((n-1) % segLen)*L + (n-1) / segLen];
+    }
+}